@@ -0,0 +1,123 @@
+package edu.utah.kmm.emerse.benchmark;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.dstu3.model.Enumerations;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of serializing and deserializing a Patient resource with a new JSON parser per call, as
+ * FhirService does, against a reused parser, and of streaming the encoded resource to a writer against encoding it to
+ * a String first.  Run with the gc profiler (the default for exec:exec) to report allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    /**
+     * A writer that discards its output, standing in for the servlet response.
+     */
+    private static class NullWriter extends Writer {
+
+        @Override
+        public void write(
+                char[] buffer,
+                int offset,
+                int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private final FhirContext fhirContext = FhirContext.forDstu3();
+
+    private final Writer writer = new NullWriter();
+
+    private IParser parser;
+
+    private Patient patient;
+
+    private String serialized;
+
+    @Setup
+    public void setup() {
+        parser = fhirContext.newJsonParser();
+        patient = new Patient();
+        patient.setId("Patient/12345");
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        patient.setBirthDate(new Date(0));
+
+        for (int i = 1; i <= 5; i++) {
+            patient.addIdentifier().setSystem("urn:oid:1.2.3." + i).setValue("MRN" + i + "0000" + i);
+            patient.addName().setFamily("Family" + i).addGiven("Given" + i).addGiven("Middle" + i);
+            patient.addAddress().addLine(i + " Main Street").setCity("Salt Lake City").setState("UT")
+                    .setPostalCode("84101");
+            patient.addTelecom().setValue("801-555-000" + i);
+        }
+
+        serialized = parser.encodeResourceToString(patient);
+    }
+
+    @Benchmark
+    public String encodeWithNewParser() {
+        return fhirContext.newJsonParser().encodeResourceToString(patient);
+    }
+
+    @Benchmark
+    public String encodeWithReusedParser() {
+        return parser.encodeResourceToString(patient);
+    }
+
+    @Benchmark
+    public Patient parseWithNewParser() {
+        return fhirContext.newJsonParser().parseResource(Patient.class, serialized);
+    }
+
+    @Benchmark
+    public Patient parseWithReusedParser() {
+        return parser.parseResource(Patient.class, serialized);
+    }
+
+    @Benchmark
+    public void writeEncodedString() throws IOException {
+        writer.write(fhirContext.newJsonParser().encodeResourceToString(patient));
+    }
+
+    @Benchmark
+    public void writeStreamed() throws IOException {
+        fhirContext.newJsonParser().encodeResourceToWriter(patient, writer);
+    }
+
+    @Benchmark
+    public Patient parseStreamed() {
+        return fhirContext.newJsonParser().parseResource(Patient.class, new StringReader(serialized));
+    }
+
+}
@@ -1,12 +1,13 @@
 export interface IndexResult {
     succeeded: number;
     failed: number;
+    skipped: number;
 }
 
 export class IndexResultUtil {
 
     static toString(result: IndexResult): string {
-        return 'Indexing result: ' + (result ? `succeeded: ${result.succeeded}  failed: ${result.failed}`
+        return 'Indexing result: ' + (result ? `succeeded: ${result.succeeded}  failed: ${result.failed}  skipped: ${result.skipped || 0}`
             : 'an unspecified error has occurred.');
     }
 }
@@ -0,0 +1,49 @@
+-- Tables used by the EMERSE import tool in addition to the standard EMERSE schema.
+-- Apply the statements not yet applied to the EMERSE database before upgrading an existing installation.
+
+-- Version of each document at the time it was last indexed (see solr.index.incremental).
+-- If this table is missing, incremental indexing is disabled at startup.
+CREATE TABLE DOCUMENT_WATERMARK (
+    DOC_ID        VARCHAR2(64)  NOT NULL,
+    PATIENT_ID    VARCHAR2(64),
+    VERSION_ID    VARCHAR2(64),
+    LAST_UPDATED  TIMESTAMP,
+    DIGEST        VARCHAR2(32),
+    CONSTRAINT DOCUMENT_WATERMARK_PK PRIMARY KEY (DOC_ID)
+);
+
+CREATE INDEX DOCUMENT_WATERMARK_PATIENT_IX ON DOCUMENT_WATERMARK (PATIENT_ID);
+
+-- Lease columns used when queue entries are shared by a cluster of servers (see solr.queue.cluster).
+-- Required in cluster mode: the server will not start in cluster mode without these columns.
+ALTER TABLE INDEXING_QUEUE ADD (
+    LEASE_OWNER   VARCHAR2(64),
+    LEASE_EXPIRES TIMESTAMP
+);
+
+-- Identifiers of index requests, stored as gzip-compressed chunks of 10000 newline-delimited entries.
+-- Replaces the INDEXING_QUEUE.IDENTIFIERS column, which is still read for requests created by earlier versions.
+-- Required: the server will not start without this table.
+CREATE TABLE INDEXING_QUEUE_CHUNK (
+    REQUEST_ID    VARCHAR2(36)  NOT NULL,
+    CHUNK_NO      NUMBER(10)    NOT NULL,
+    ID_COUNT      NUMBER(10)    NOT NULL,
+    DATA          BLOB          NOT NULL,
+    CONSTRAINT INDEXING_QUEUE_CHUNK_PK PRIMARY KEY (REQUEST_ID, CHUNK_NO)
+);
+
+-- Scheduling class of each queue entry (0 = interactive, 1 = bulk).  Existing entries are treated as bulk.
+-- Required: the server will not start without this column.
+ALTER TABLE INDEXING_QUEUE ADD (
+    PRIORITY      NUMBER(1)     DEFAULT 1 NOT NULL
+);
+
+-- FHIR id to which each MRN was resolved by an external identifier service (see epic.patient.map.enabled).
+-- A null PATIENT_ID records an MRN that was not found.
+-- If this table is missing, mappings are not recorded.
+CREATE TABLE PATIENT_ID_MAP (
+    MRN           VARCHAR2(64)  NOT NULL,
+    PATIENT_ID    VARCHAR2(64),
+    RESOLVED      TIMESTAMP     NOT NULL,
+    CONSTRAINT PATIENT_ID_MAP_PK PRIMARY KEY (MRN)
+);
@@ -53,7 +53,7 @@ public class EpicAuthenticator extends BaseOAuth2Authenticator {
     @Override
     public void initialize(FhirService fhirService) {
         super.initialize(fhirService);
-        fhirService.getGenericClient().registerInterceptor(new EpicAuthInterceptor());
+        registerInterceptor(fhirService, new EpicAuthInterceptor());
     }
 
     private AccessToken generateAccessToken() {
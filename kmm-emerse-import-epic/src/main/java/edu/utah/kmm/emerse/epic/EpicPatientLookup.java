@@ -1,22 +1,40 @@
 package edu.utah.kmm.emerse.epic;
 
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import edu.utah.kmm.emerse.database.DatabaseService;
 import edu.utah.kmm.emerse.patient.IPatientLookup;
+import edu.utah.kmm.emerse.patient.PatientIdMapping;
 import edu.utah.kmm.emerse.patient.PatientService;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.hl7.fhir.dstu3.model.Patient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 
 import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Epic requires using web services (which require basic authentication) to retrieve a patient
  * when using OAuth2 (because the access token has not yet been retrieved at this point).
+ * <p>
+ * Because the mapping of an MRN to a FHIR id rarely changes, resolved MRNs (including those that were not found) are
+ * recorded in the database and consulted before calling the web service.
  */
 public class EpicPatientLookup implements IPatientLookup {
 
+    private static final Log log = LogFactory.getLog(EpicPatientLookup.class);
+
     private static final String GET_IDENTIFIERS = "epic/2015/Common/Patient/GetPatientIdentifiers/Patient/Identifiers";
 
     private String userid;
@@ -27,6 +45,15 @@ public class EpicPatientLookup implements IPatientLookup {
     @Autowired
     private EpicService epicService;
 
+    @Autowired
+    private DatabaseService databaseService;
+
+    @Value("${epic.patient.map.enabled:true}")
+    private boolean mapEnabled;
+
+    @Value("${epic.patient.map.negative.ttl:86400000}")
+    private long negativeTtl;
+
     @Override
     public String getName() {
         return "EPIC";
@@ -35,10 +62,108 @@ public class EpicPatientLookup implements IPatientLookup {
     @PostConstruct
     private void init() {
         userid = StringUtils.substringAfter(epicService.getCredentials().getUsername(), "emp$");
+
+        if (mapEnabled && !databaseService.hasPatientIdMappings()) {
+            log.warn("PATIENT_ID_MAP table not found; MRN to FHIR id mappings will not be recorded."
+                    + "  Run emerse-it-schema.sql to enable them.");
+            mapEnabled = false;
+        }
     }
 
     @Override
     public Patient lookupByMRN(String mrn) {
+        PatientIdMapping mapping = mapEnabled ? databaseService.fetchPatientIdMapping(mrn) : null;
+
+        if (mapping != null && !mapping.isExpired(negativeTtl)) {
+            if (mapping.isNotFound()) {
+                return null;
+            }
+
+            try {
+                return getPatient(mapping.getPatientId(), mrn);
+            } catch (ResourceNotFoundException e) {
+                log.warn("Recorded FHIR id " + mapping.getPatientId() + " for MRN " + mrn + " no longer exists");
+            }
+        }
+
+        String patid = resolvePatientId(mrn);
+
+        if (mapEnabled) {
+            databaseService.savePatientIdMappings(Collections.singletonList(new PatientIdMapping(mrn, patid, new Date())));
+        }
+
+        return patid == null ? null : getPatient(patid, mrn);
+    }
+
+    /**
+     * Looks up several patients by MRN.  MRNs are resolved from the recorded mappings where possible and otherwise by
+     * the Epic identifier web service, one at a time.  The patients are then retrieved with a single search.  As with
+     * a single lookup, an MRN whose recorded FHIR id no longer exists is resolved again.
+     *
+     * @param mrns The MRNs.
+     * @return Map of MRN to patient resource.  MRNs that were not found are omitted.
+     */
+    @Override
+    public Map<String, Patient> lookupByMRNs(Collection<String> mrns) {
+        Map<String, PatientIdMapping> mappings = mapEnabled
+                ? databaseService.fetchPatientIdMappings(mrns) : Collections.emptyMap();
+        Map<String, String> patids = new LinkedHashMap<>();
+        Set<String> recorded = new HashSet<>();
+        List<PatientIdMapping> resolved = new ArrayList<>();
+
+        for (String mrn : mrns) {
+            PatientIdMapping mapping = mappings.get(mrn);
+
+            if (mapping == null || mapping.isExpired(negativeTtl)) {
+                mapping = new PatientIdMapping(mrn, resolvePatientId(mrn), new Date());
+                resolved.add(mapping);
+            } else {
+                recorded.add(mrn);
+            }
+
+            if (!mapping.isNotFound()) {
+                patids.put(mrn, mapping.getPatientId());
+            }
+        }
+
+        if (mapEnabled && !resolved.isEmpty()) {
+            databaseService.savePatientIdMappings(resolved);
+        }
+
+        Map<String, Patient> byId = patientService.getPatientsById(patids.values());
+        Map<String, Patient> patients = new LinkedHashMap<>();
+        List<PatientIdMapping> reresolved = new ArrayList<>();
+
+        patids.forEach((mrn, patid) -> {
+            Patient patient = byId.get(patid);
+
+            if (patient == null && recorded.contains(mrn)) {
+                log.warn("Recorded FHIR id " + patid + " for MRN " + mrn + " no longer exists");
+                PatientIdMapping mapping = new PatientIdMapping(mrn, resolvePatientId(mrn), new Date());
+                reresolved.add(mapping);
+                patient = mapping.isNotFound() ? null : patientService.getPatientById(mapping.getPatientId());
+            }
+
+            if (patient != null) {
+                addMRN(patient, mrn);
+                patients.put(mrn, patient);
+            }
+        });
+
+        if (mapEnabled && !reresolved.isEmpty()) {
+            databaseService.savePatientIdMappings(reresolved);
+        }
+
+        return patients;
+    }
+
+    /**
+     * Resolves an MRN to a FHIR id using the Epic identifier web service.
+     *
+     * @param mrn The MRN.
+     * @return The FHIR id, or null if not found.
+     */
+    private String resolvePatientId(String mrn) {
         Map<String, String> body = new HashMap<>();
         body.put("PatientID", mrn);
         body.put("PatientIDType", "EPICMRN");
@@ -51,18 +176,41 @@ public class EpicPatientLookup implements IPatientLookup {
             String type = entry.get("IDType");
 
             if ("FHIR STU3".equals(type)) {
-                String patid = entry.get("ID");
-                Patient patient = patientService.getPatientById(patid);
-
-                if (patientService.extractMRN(patient) == null) {
-                    patient.addIdentifier(patientService.createMRN(mrn));
-                }
-
-                return patient;
+                return entry.get("ID");
             }
         }
 
         return null;
     }
 
+    /**
+     * Returns the patient resource for a FHIR id, adding the MRN if the resource lacks it.
+     *
+     * @param patid The FHIR id.
+     * @param mrn The MRN.
+     * @return The patient resource.
+     */
+    private Patient getPatient(
+            String patid,
+            String mrn) {
+        return addMRN(patientService.getPatientById(patid), mrn);
+    }
+
+    /**
+     * Adds the MRN to a patient resource if the resource lacks it.
+     *
+     * @param patient The patient resource.
+     * @param mrn The MRN.
+     * @return The patient resource.
+     */
+    private Patient addMRN(
+            Patient patient,
+            String mrn) {
+        if (patientService.extractMRN(patient) == null) {
+            patient.addIdentifier(patientService.createMRN(mrn));
+        }
+
+        return patient;
+    }
+
 }
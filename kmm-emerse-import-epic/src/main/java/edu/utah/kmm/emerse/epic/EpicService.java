@@ -1,6 +1,8 @@
 package edu.utah.kmm.emerse.epic;
 
 import edu.utah.kmm.emerse.security.Credentials;
+import edu.utah.kmm.emerse.throttle.EndpointClass;
+import edu.utah.kmm.emerse.throttle.RateLimiters;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.RedirectStrategy;
@@ -10,12 +12,15 @@ import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.protocol.HttpContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.client.support.BasicAuthenticationInterceptor;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
@@ -36,6 +41,9 @@ public class EpicService {
     @Autowired
     private Credentials epicServiceCredentials;
 
+    @Autowired
+    private RateLimiters rateLimiters;
+
     private RestTemplate restTemplateBasic;
 
     private RestTemplate restTemplateNone;
@@ -94,7 +102,7 @@ public class EpicService {
                 .get(createURI(uri, params)))
                 .build();
 
-        return getRestTemplate(authenticate).exchange(request, returnType);
+        return exchange(request, returnType, authenticate);
     }
 
     /**
@@ -130,7 +138,43 @@ public class EpicService {
                 .contentType(asJSON ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_FORM_URLENCODED)
                 .body(body);
 
-        return getRestTemplate(authenticate).exchange(request, returnType);
+        return exchange(request, returnType, authenticate);
+    }
+
+    /**
+     * Performs a request under the rate limit for Epic web services.  A request that is throttled is retried once the
+     * period requested by the server has elapsed.
+     *
+     * @param request The request.
+     * @param returnType The expected return type.
+     * @param authenticate If true, require authentication.
+     * @param <T> The expected return type.
+     * @return The response.
+     */
+    private <T> ResponseEntity<T> exchange(RequestEntity<?> request, Class<T> returnType, boolean authenticate) {
+        return rateLimiters.call(EndpointClass.EPIC, () -> getRestTemplate(authenticate).exchange(request, returnType),
+                EpicService::getRetryAfter);
+    }
+
+    /**
+     * If an exception thrown by a request indicates that the request was throttled, returns the period after which it
+     * may be retried.
+     *
+     * @param e The exception.
+     * @return The period (in ms) from the Retry-After header (zero if absent), or null if not throttled.
+     */
+    private static Long getRetryAfter(Exception e) {
+        if (e instanceof HttpStatusCodeException) {
+            HttpStatusCodeException ex = (HttpStatusCodeException) e;
+            int status = ex.getRawStatusCode();
+
+            if (status == HttpStatus.TOO_MANY_REQUESTS.value() || status == HttpStatus.SERVICE_UNAVAILABLE.value()) {
+                HttpHeaders headers = ex.getResponseHeaders();
+                return RateLimiters.parseRetryAfter(headers == null ? null : headers.getFirst(HttpHeaders.RETRY_AFTER));
+            }
+        }
+
+        return null;
     }
 
     /**
@@ -4,11 +4,15 @@ import ca.uhn.fhir.rest.client.api.IClientInterceptor;
 import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
 import edu.utah.kmm.emerse.fhir.FhirService;
 import edu.utah.kmm.emerse.security.Credentials;
+import org.apache.commons.codec.binary.Base64;
 
 /**
  * Authenticator for basic authentication.
  */
 public class BasicAuthenticator implements IAuthenticator {
+
+    private String authHeader;
+
     @Override
     public String getName() {
         return "BASIC";
@@ -20,6 +24,12 @@ public class BasicAuthenticator implements IAuthenticator {
         IClientInterceptor interceptor = new BasicAuthInterceptor(
                 credentials.getUsername(), credentials.getPassword());
         fhirService.getGenericClient().registerInterceptor(interceptor);
+        authHeader = "Basic " + new String(Base64.encodeBase64((credentials.getUsername() + ":" + credentials.getPassword()).getBytes()));
+    }
+
+    @Override
+    public String getAuthorizationHeader() {
+        return authHeader;
     }
 
 }
@@ -19,4 +19,12 @@ public interface IAuthenticator {
      */
     void initialize(FhirService fhirService);
 
+    /**
+     * Returns the value of the Authorization header for FHIR requests made outside the generic client (such as bulk
+     * data requests).
+     *
+     * @return The header value, or null if no Authorization header is required.
+     */
+    String getAuthorizationHeader();
+
 }
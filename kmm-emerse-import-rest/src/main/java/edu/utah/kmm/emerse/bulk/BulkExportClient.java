@@ -0,0 +1,341 @@
+package edu.utah.kmm.emerse.bulk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.utah.kmm.emerse.throttle.RateLimiters;
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Client for the FHIR Bulk Data export operation.  An export is started with a kick-off request, after which its
+ * status endpoint is polled until the server reports the locations of the NDJSON output files.  Output files are
+ * returned as streams so that their content never needs to be held in memory.
+ */
+public class BulkExportClient {
+
+    private static final Log log = LogFactory.getLog(BulkExportClient.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The level at which an export is performed.
+     */
+    public enum ExportLevel {
+        PATIENT, GROUP
+    }
+
+    /**
+     * An output file listed in a completed export's manifest.
+     */
+    public static class OutputFile {
+
+        private final String type;
+
+        private final String url;
+
+        private final boolean requiresAccessToken;
+
+        private OutputFile(
+                String type,
+                String url,
+                boolean requiresAccessToken) {
+            this.type = type;
+            this.url = url;
+            this.requiresAccessToken = requiresAccessToken;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+    }
+
+    private final String fhirRoot;
+
+    private final Supplier<Map<String, String>> headerSource;
+
+    private final int timeout;
+
+    private final long pollInterval;
+
+    private final long maxWait;
+
+    /**
+     * Creates a bulk export client.
+     *
+     * @param fhirRoot The FHIR server's base URL.
+     * @param headerSource Returns the headers (e.g., authorization) to add to a request.
+     * @param timeout The connect and read timeout (in ms).
+     * @param pollInterval The interval (in ms) between status requests when the server does not specify one.
+     * @param maxWait The maximum time (in ms) to wait for an export to complete.  If not positive, waits indefinitely.
+     */
+    public BulkExportClient(
+            String fhirRoot,
+            Supplier<Map<String, String>> headerSource,
+            int timeout,
+            long pollInterval,
+            long maxWait) {
+        this.fhirRoot = StringUtils.removeEnd(fhirRoot, "/");
+        this.headerSource = headerSource;
+        this.timeout = timeout;
+        this.pollInterval = Math.max(1, pollInterval);
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Starts an export.
+     *
+     * @param level The export level.
+     * @param groupId The id of the group to export (required for a group-level export).
+     * @param types The resource types to export.
+     * @param since If not null, only resources updated after this instant (as a FHIR instant) are exported.
+     * @return The URL of the export's status endpoint.
+     */
+    public String kickoff(
+            ExportLevel level,
+            String groupId,
+            Collection<String> types,
+            String since) {
+        StringBuilder url = new StringBuilder(fhirRoot);
+
+        if (level == ExportLevel.GROUP) {
+            if (StringUtils.isEmpty(groupId)) {
+                throw new IllegalArgumentException("A group id is required for a group-level export");
+            }
+
+            url.append("/Group/").append(encode(groupId));
+        } else {
+            url.append("/Patient");
+        }
+
+        url.append("/$export?_outputFormat=").append(encode("application/fhir+ndjson"))
+                .append("&_type=").append(encode(String.join(",", types)));
+
+        if (since != null) {
+            url.append("&_since=").append(encode(since));
+        }
+
+        HttpURLConnection connection = open("GET", url.toString(), true);
+
+        try {
+            connection.setRequestProperty("Accept", "application/fhir+json");
+            connection.setRequestProperty("Prefer", "respond-async");
+            int status = connection.getResponseCode();
+
+            if (status != HttpURLConnection.HTTP_ACCEPTED) {
+                throw error("Export kick-off", connection);
+            }
+
+            String location = connection.getHeaderField("Content-Location");
+
+            if (location == null) {
+                throw new IllegalStateException("Export kick-off response did not include a status location");
+            }
+
+            log.info("Started bulk export; status at " + location);
+            return location;
+        } catch (IOException e) {
+            return MiscUtil.rethrow(e);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Polls an export's status endpoint until the export completes.  A throttled status request is treated like an
+     * export still in progress.
+     *
+     * @param statusUrl The URL of the status endpoint.
+     * @return The output files of the completed export.
+     */
+    public List<OutputFile> await(String statusUrl) {
+        long deadline = maxWait > 0 ? System.currentTimeMillis() + maxWait : Long.MAX_VALUE;
+
+        while (true) {
+            HttpURLConnection connection = open("GET", statusUrl, true);
+            long delay;
+
+            try {
+                connection.setRequestProperty("Accept", "application/json");
+                int status = connection.getResponseCode();
+
+                if (status == HttpURLConnection.HTTP_OK) {
+                    try (InputStream body = connection.getInputStream()) {
+                        return parseManifest(MAPPER.readTree(body));
+                    }
+                }
+
+                if (status == HTTP_TOO_MANY_REQUESTS) {
+                    log.info("Bulk export status request throttled by server");
+                } else if (status != HttpURLConnection.HTTP_ACCEPTED) {
+                    throw error("Export status", connection);
+                } else {
+                    String progress = connection.getHeaderField("X-Progress");
+
+                    if (progress != null) {
+                        log.info("Bulk export in progress: " + progress);
+                    }
+                }
+
+                delay = RateLimiters.parseRetryAfter(connection.getHeaderField("Retry-After"));
+            } catch (IOException e) {
+                return MiscUtil.rethrow(e);
+            } finally {
+                connection.disconnect();
+            }
+
+            delay = delay > 0 ? delay : pollInterval;
+
+            if (System.currentTimeMillis() + delay > deadline) {
+                throw new IllegalStateException("Timed out waiting for bulk export to complete: " + statusUrl);
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return MiscUtil.rethrow(e);
+            }
+        }
+    }
+
+    /**
+     * Extracts the output files from a completed export's manifest.  Errors reported by the server are logged.
+     *
+     * @param manifest The manifest.
+     * @return The output files.
+     */
+    private List<OutputFile> parseManifest(JsonNode manifest) {
+        boolean requiresAccessToken = manifest.path("requiresAccessToken").asBoolean(false);
+        List<OutputFile> files = new ArrayList<>();
+
+        for (JsonNode output : manifest.path("output")) {
+            files.add(new OutputFile(output.path("type").asText(), output.path("url").asText(), requiresAccessToken));
+        }
+
+        for (JsonNode error : manifest.path("error")) {
+            log.warn("Bulk export reported errors in " + error.path("url").asText());
+        }
+
+        return files;
+    }
+
+    /**
+     * Opens an output file for reading.  The caller must close the returned stream.
+     *
+     * @param file The output file.
+     * @return The file's content.
+     */
+    public InputStream read(OutputFile file) {
+        HttpURLConnection connection = open("GET", file.url, file.requiresAccessToken);
+
+        try {
+            connection.setRequestProperty("Accept", "application/fhir+ndjson");
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw error("Export file download", connection);
+            }
+
+            InputStream body = connection.getInputStream();
+            return "gzip".equalsIgnoreCase(connection.getContentEncoding()) ? new GZIPInputStream(body) : body;
+        } catch (IOException e) {
+            connection.disconnect();
+            return MiscUtil.rethrow(e);
+        }
+    }
+
+    /**
+     * Informs the server that the output of an export is no longer needed.  Failures are logged and ignored.
+     *
+     * @param statusUrl The URL of the status endpoint.
+     */
+    public void delete(String statusUrl) {
+        HttpURLConnection connection = open("DELETE", statusUrl, true);
+
+        try {
+            connection.getResponseCode();
+        } catch (IOException e) {
+            log.warn("Error deleting bulk export at " + statusUrl, e);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Creates a connection to a URL.
+     *
+     * @param method The HTTP method.
+     * @param url The URL.
+     * @param authenticate If true, adds the headers from the header source.
+     * @return The connection.
+     */
+    private HttpURLConnection open(
+            String method,
+            String url,
+            boolean authenticate) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            Map<String, String> headers = authenticate ? headerSource.get() : Collections.emptyMap();
+            headers.forEach(connection::setRequestProperty);
+            return connection;
+        } catch (IOException e) {
+            return MiscUtil.rethrow(e);
+        }
+    }
+
+    /**
+     * Creates an exception for an unexpected response.
+     *
+     * @param operation Description of the operation.
+     * @param connection The connection.
+     * @return The exception.
+     */
+    private IllegalStateException error(
+            String operation,
+            HttpURLConnection connection) throws IOException {
+        String body = "";
+
+        try (InputStream stream = connection.getErrorStream()) {
+            body = stream == null ? "" : IOUtils.toString(stream, StandardCharsets.UTF_8);
+        }
+
+        return new IllegalStateException(operation + " failed with status " + connection.getResponseCode()
+                + (body.isEmpty() ? "" : ": " + StringUtils.abbreviate(body, 500)));
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (IOException e) {
+            return MiscUtil.rethrow(e);
+        }
+    }
+
+}
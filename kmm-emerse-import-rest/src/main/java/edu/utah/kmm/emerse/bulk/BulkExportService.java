@@ -0,0 +1,318 @@
+package edu.utah.kmm.emerse.bulk;
+
+import edu.utah.kmm.emerse.bulk.BulkExportClient.ExportLevel;
+import edu.utah.kmm.emerse.bulk.BulkExportClient.OutputFile;
+import edu.utah.kmm.emerse.database.DatabaseService;
+import edu.utah.kmm.emerse.fhir.FhirService;
+import edu.utah.kmm.emerse.patient.PatientService;
+import edu.utah.kmm.emerse.solr.IndexContext;
+import edu.utah.kmm.emerse.solr.IndexResult;
+import edu.utah.kmm.emerse.solr.PriorityGovernor;
+import edu.utah.kmm.emerse.solr.SolrService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.dstu3.model.DocumentReference;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Ingests patients and documents from a FHIR Bulk Data export.  Each export runs in the background: the export is
+ * started, its status is polled until complete, and then the NDJSON output is streamed line by line, with patients
+ * written to the PATIENT table before documents are indexed.  Neither output is ever fully held in memory.  Only the
+ * MRN of each exported patient is retained, keyed by FHIR id, so that the subjects of the documents that follow can be
+ * resolved without FHIR reads.  Resources are ingested in batches, each under a bulk permit from the priority
+ * governor, so that an export yields to interactive indexing.
+ */
+public class BulkExportService {
+
+    private static final Log log = LogFactory.getLog(BulkExportService.class);
+
+    private static final String PATIENT = "Patient";
+
+    private static final String DOCUMENT_REFERENCE = "DocumentReference";
+
+    /**
+     * The progress of a bulk export.
+     */
+    private static class BulkExportJob {
+
+        private final String id = UUID.randomUUID().toString();
+
+        private final ExportLevel level;
+
+        private final String groupId;
+
+        private final String since;
+
+        private final Date submitted = new Date();
+
+        private final IndexResult result = new IndexResult();
+
+        private volatile String state = "QUEUED";
+
+        private volatile String error;
+
+        private volatile long patients;
+
+        private final Map<String, String> mrnsById = new HashMap<>();
+
+        private volatile Date completed;
+
+        private BulkExportJob(
+                ExportLevel level,
+                String groupId,
+                String since) {
+            this.level = level;
+            this.groupId = groupId;
+            this.since = since;
+        }
+
+        private Map<String, Object> getStatus() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("id", id);
+            status.put("level", level);
+            status.put("groupId", groupId);
+            status.put("since", since);
+            status.put("state", state);
+            status.put("submitted", submitted);
+            status.put("completed", completed);
+            status.put("patients", patients);
+            status.put("succeeded", result.getSucceeded());
+            status.put("failed", result.getFailed());
+            status.put("skipped", result.getSkipped());
+            status.put("error", error);
+            return status;
+        }
+
+    }
+
+    @Autowired
+    private FhirService fhirService;
+
+    @Autowired
+    private PatientService patientService;
+
+    @Autowired
+    private DatabaseService databaseService;
+
+    @Autowired
+    private SolrService solrService;
+
+    @Value("${fhir.server.root}")
+    private String fhirRoot;
+
+    @Value("${fhir.bulk.root:}")
+    private String bulkRoot;
+
+    @Value("${fhir.bulk.poll.interval:10000}")
+    private long pollInterval;
+
+    @Value("${fhir.bulk.timeout:86400000}")
+    private long maxWait;
+
+    @Value("${fhir.server.timeout:20000}")
+    private int timeout;
+
+    @Value("${fhir.bulk.history:50}")
+    private int maxHistory;
+
+    @Value("${fhir.bulk.batch.size:100}")
+    private int batchSize;
+
+    private BulkExportClient client;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EMERSE-IT bulk export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, BulkExportJob> jobs = new LinkedHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        client = new BulkExportClient(StringUtils.defaultIfBlank(bulkRoot, fhirRoot), fhirService::getRequestHeaders,
+                timeout, pollInterval, maxWait);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues a bulk export for ingestion.  Exports are processed one at a time in the order submitted.
+     *
+     * @param level The export level.
+     * @param groupId The id of the group to export (required for a group-level export).
+     * @param since If not null, only resources updated after this instant (as a FHIR instant) are exported.
+     * @return The id of the export job.
+     */
+    public String submit(
+            ExportLevel level,
+            String groupId,
+            String since) {
+        BulkExportJob job = new BulkExportJob(level, groupId, since);
+
+        synchronized (jobs) {
+            jobs.put(job.id, job);
+        }
+
+        executor.execute(() -> run(job));
+        return job.id;
+    }
+
+    /**
+     * Returns the status of each export job that is queued or running, and of the most recently finished jobs.
+     */
+    public List<Map<String, Object>> getStatus() {
+        List<Map<String, Object>> status = new ArrayList<>();
+
+        synchronized (jobs) {
+            jobs.values().forEach(job -> status.add(job.getStatus()));
+        }
+
+        return status;
+    }
+
+    /**
+     * Performs an export job.
+     *
+     * @param job The export job.
+     */
+    private void run(BulkExportJob job) {
+        try (IndexContext context = IndexContext.begin(null, job.result)) {
+            job.state = "EXPORTING";
+            String statusUrl = client.kickoff(job.level, job.groupId, Arrays.asList(PATIENT, DOCUMENT_REFERENCE),
+                    job.since);
+            List<OutputFile> files = client.await(statusUrl);
+            job.state = "INGESTING";
+            ingest(files, PATIENT, job);
+            ingest(files, DOCUMENT_REFERENCE, job);
+            solrService.requestCompleted();
+            client.delete(statusUrl);
+            job.state = "COMPLETED";
+        } catch (Exception e) {
+            log.error("Bulk export " + job.id + " failed", e);
+            job.error = e.getMessage();
+            job.state = "ERROR";
+        } finally {
+            job.mrnsById.clear();
+            job.completed = new Date();
+            pruneJobs();
+        }
+    }
+
+    /**
+     * Discards the oldest finished jobs in excess of the configured history size.
+     */
+    private void pruneJobs() {
+        synchronized (jobs) {
+            long excess = jobs.values().stream().filter(job -> job.completed != null).count() - Math.max(0, maxHistory);
+            Iterator<BulkExportJob> iterator = jobs.values().iterator();
+
+            while (excess > 0 && iterator.hasNext()) {
+                if (iterator.next().completed != null) {
+                    iterator.remove();
+                    excess--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams the output files of one resource type into the appropriate writer.
+     *
+     * @param files The export's output files.
+     * @param type The resource type to ingest.
+     * @param job The export job.
+     */
+    private void ingest(
+            List<OutputFile> files,
+            String type,
+            BulkExportJob job) throws Exception {
+        for (OutputFile file : files) {
+            if (!type.equals(file.getType())) {
+                continue;
+            }
+
+            log.info("Ingesting bulk export file " + file.getUrl());
+
+            if (PATIENT.equals(type)) {
+                try (NdjsonReader<Patient> patients = new NdjsonReader<>(client.read(file),
+                        fhirService.newJsonParser(), Patient.class)) {
+                    inBatches(patients, batch -> batch.forEach(patient -> ingestPatient(patient, job)));
+                }
+            } else {
+                try (NdjsonReader<DocumentReference> documents = new NdjsonReader<>(client.read(file),
+                        fhirService.newJsonParser(), DocumentReference.class)) {
+                    inBatches(documents, batch -> job.result.combine(solrService.indexDocuments(batch.iterator(),
+                            job.mrnsById::get)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Consumes resources in batches, holding a bulk permit from the priority governor while each batch is processed.
+     *
+     * @param resources The resources.
+     * @param processor Processes a batch of resources.
+     * @param <T> The resource type.
+     */
+    private <T> void inBatches(
+            Iterator<T> resources,
+            Consumer<List<T>> processor) {
+        int size = Math.max(1, batchSize);
+
+        while (resources.hasNext()) {
+            List<T> batch = new ArrayList<>(size);
+
+            while (batch.size() < size && resources.hasNext()) {
+                batch.add(resources.next());
+            }
+
+            try (PriorityGovernor.Permit permit = solrService.getPriorityGovernor().bulk()) {
+                processor.accept(batch);
+            }
+        }
+    }
+
+    /**
+     * Writes a patient to the PATIENT table, and records its MRN so that the subjects of documents that follow can be
+     * resolved without a FHIR read.
+     *
+     * @param patient The patient.
+     * @param job The export job.
+     */
+    private void ingestPatient(
+            Patient patient,
+            BulkExportJob job) {
+        if (patientService.extractMRN(patient) == null) {
+            log.warn("Skipping exported patient without an MRN: " + patient.getIdElement().getIdPart());
+            return;
+        }
+
+        databaseService.createOrUpdatePatient(patient, true);
+        job.mrnsById.put(patient.getIdElement().getIdPart(), patientService.extractMRN(patient));
+        job.patients++;
+    }
+
+}
@@ -0,0 +1,112 @@
+package edu.utah.kmm.emerse.bulk;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the resources in an NDJSON stream, parsing one line at a time.  Blank lines, lines that cannot be
+ * parsed, and resources of other types are skipped.
+ *
+ * @param <T> The resource type.
+ */
+public class NdjsonReader<T extends IBaseResource> implements Iterator<T>, Closeable {
+
+    private static final Log log = LogFactory.getLog(NdjsonReader.class);
+
+    private final BufferedReader reader;
+
+    private final IParser parser;
+
+    private final Class<T> resourceType;
+
+    private T next;
+
+    private long lineNumber;
+
+    private long skipped;
+
+    /**
+     * Creates a reader.
+     *
+     * @param stream The NDJSON stream.  Closed when this reader is closed.
+     * @param parser The JSON parser.
+     * @param resourceType The type of resource to return.
+     */
+    public NdjsonReader(
+            InputStream stream,
+            IParser parser,
+            Class<T> resourceType) {
+        this.reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+        this.parser = parser;
+        this.resourceType = resourceType;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            String line;
+
+            while (next == null && (line = reader.readLine()) != null) {
+                lineNumber++;
+
+                if (StringUtils.isBlank(line)) {
+                    continue;
+                }
+
+                try {
+                    IBaseResource resource = parser.parseResource(line);
+
+                    if (resourceType.isInstance(resource)) {
+                        next = resourceType.cast(resource);
+                    } else {
+                        skipped++;
+                    }
+                } catch (Exception e) {
+                    skipped++;
+                    log.warn("Skipping unparseable resource at line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+
+            return next != null;
+        } catch (IOException e) {
+            return MiscUtil.rethrow(e);
+        }
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        T result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Returns the number of lines skipped because they could not be parsed or were of another type.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
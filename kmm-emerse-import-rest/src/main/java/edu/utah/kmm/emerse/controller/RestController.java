@@ -1,5 +1,7 @@
 package edu.utah.kmm.emerse.controller;
 
+import edu.utah.kmm.emerse.bulk.BulkExportClient;
+import edu.utah.kmm.emerse.bulk.BulkExportService;
 import edu.utah.kmm.emerse.config.ClientConfigService;
 import edu.utah.kmm.emerse.database.DatabaseService;
 import edu.utah.kmm.emerse.document.ContentDTO;
@@ -8,6 +10,7 @@ import edu.utah.kmm.emerse.fhir.FhirService;
 import edu.utah.kmm.emerse.fhir.IdentifierType;
 import edu.utah.kmm.emerse.patient.PatientService;
 import edu.utah.kmm.emerse.solr.*;
+import edu.utah.kmm.emerse.throttle.RateLimiters;
 import edu.utah.kmm.emerse.util.MiscUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,6 +24,12 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
 import java.util.*;
 
@@ -56,6 +65,12 @@ public class RestController {
     @Autowired
     private DaemonManager daemonManager;
 
+    @Autowired
+    private RateLimiters rateLimiters;
+
+    @Autowired
+    private BulkExportService bulkExportService;
+
     /**
      * Forces login if not already authenticated.
      *
@@ -92,31 +107,40 @@ public class RestController {
     }
 
     /**
-     * Fetch patient from FHIR service.
+     * Fetch patient from FHIR service.  The resource is serialized before the response is written, so that an encoding
+     * failure is still reported as an error.
      *
      * @param id The patient's id.
      * @param type The id type.
-     * @return Serialized form of the Patient resource.
+     * @return The serialized Patient resource, or status 404 if the patient is not found.
      */
-    @GetMapping("/patient")
-    @ResponseBody
-    public String getPatient(
+    @GetMapping(path = "/patient", produces = MediaType.APPLICATION_JSON_VALUE + ";charset=UTF-8")
+    public ResponseEntity<String> getPatient(
             @RequestParam String id,
             @RequestParam IdentifierType type) {
-        return fhirService.serialize(patientService.getPatient(id, type));
+        Patient patient = patientService.getPatient(id, type);
+        return patient == null
+                ? new ResponseEntity<>(HttpStatus.NOT_FOUND)
+                : new ResponseEntity<>(fhirService.serialize(patient), HttpStatus.OK);
     }
 
     /**
-     * Create/update entry in EMERSE patient table.
+     * Create/update entry in EMERSE patient table.  The resource is parsed directly from the request.
      *
-     * @param payload Serialized form of the Patient resource.
+     * @param request The HTTP request, whose body is the serialized form of the Patient resource.
      * @return Status of the operation.
      */
     @PostMapping("/patient")
-    public ResponseEntity<?> updatePatient(
-            @RequestBody String payload) {
-        Patient patient = fhirService.deserialize(payload, Patient.class);
-        databaseService.createOrUpdatePatient(patient, true);
+    public ResponseEntity<?> updatePatient(HttpServletRequest request) throws IOException {
+        String encoding = request.getCharacterEncoding();
+        Charset charset = encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding);
+
+        try (Reader reader = new InputStreamReader(request.getInputStream(), charset)) {
+            Patient patient = fhirService.deserialize(reader, Patient.class);
+            databaseService.createOrUpdatePatient(patient, true);
+        }
+
+        solrService.requestCompleted();
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
@@ -165,7 +189,7 @@ public class RestController {
     public IndexResult indexDocumentsByPatient(
             @RequestParam String id,
             @RequestParam IdentifierType type) {
-        return solrService.indexDocuments(id, type);
+        return solrService.indexImmediate(id, type);
     }
 
     /**
@@ -199,16 +223,46 @@ public class RestController {
      * Run batch index in background
      *
      * @param file File containing list of id's.
+     * @param priority The scheduling class of the request (defaults to bulk).
      * @return The indexing result.
      */
     @PostMapping("/batch-bg")
     @ResponseBody
     public ResponseEntity<?> indexBatchQueued(
-            @RequestParam MultipartFile file) {
-        solrService.batchIndexQueued(file.getResource());
+            @RequestParam MultipartFile file,
+            @RequestParam(defaultValue = "BULK") IndexRequestDTO.IndexPriority priority) {
+        solrService.batchIndexQueued(file.getResource(), priority);
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
+    /**
+     * Starts ingesting patients and documents from a FHIR bulk data export in the background.
+     *
+     * @param level The export level (patient or group).
+     * @param groupId The id of the group to export (required for a group-level export).
+     * @param since If specified, only resources updated after this instant are exported.
+     * @return The id of the export job.
+     */
+    @PostMapping("/bulk-export")
+    @ResponseBody
+    public ResponseEntity<?> startBulkExport(
+            @RequestParam(defaultValue = "PATIENT") BulkExportClient.ExportLevel level,
+            @RequestParam(required = false) String groupId,
+            @RequestParam(required = false) String since) {
+        return new ResponseEntity<>(bulkExportService.submit(level, groupId, since), HttpStatus.OK);
+    }
+
+    /**
+     * Returns the status of bulk data export jobs.
+     *
+     * @return The status of each export job.
+     */
+    @GetMapping("/bulk-export")
+    @ResponseBody
+    public List<?> bulkExportStatus() {
+        return bulkExportService.getStatus();
+    }
+
     /**
      * Fetches entries from the index request table.
      *
@@ -250,6 +304,38 @@ public class RestController {
         return new ResponseEntity<>(solrService.getIndexStatus(), HttpStatus.OK);
     }
 
+    /**
+     * Returns the current state of the adaptive concurrency limits for the FHIR server and Solr updates, of the
+     * indexing workers sized from them, of the rate limits for outbound calls, and of the governor that limits bulk
+     * indexing during interactive indexing.
+     *
+     * @return The state of each limiter.
+     */
+    @GetMapping("/limits")
+    @ResponseBody
+    public ResponseEntity<?> limits() {
+        Map<String, Object> limits = new LinkedHashMap<>();
+        List<Map<String, Object>> concurrency = new ArrayList<>();
+        concurrency.add(fhirService.getLimiter().getStatus());
+        concurrency.add(solrService.getUpdateLimiter().getStatus());
+        limits.put("concurrency", concurrency);
+        limits.put("workers", solrService.getWorkerStatus());
+        limits.put("rate", rateLimiters.getStatus());
+        limits.put("priority", solrService.getPriorityGovernor().getStatus());
+        return new ResponseEntity<>(limits, HttpStatus.OK);
+    }
+
+    /**
+     * Returns patient cache statistics.
+     *
+     * @return The size of the patient cache and its hit, miss, eviction and expiration counts.
+     */
+    @GetMapping("/cache")
+    @ResponseBody
+    public ResponseEntity<?> cache() {
+        return new ResponseEntity<>(patientService.getCacheStatus(), HttpStatus.OK);
+    }
+
     /**
      * Global exception handler for all REST endpoints.
      *
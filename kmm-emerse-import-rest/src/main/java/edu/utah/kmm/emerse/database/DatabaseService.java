@@ -1,11 +1,13 @@
 package edu.utah.kmm.emerse.database;
 
+import edu.utah.kmm.emerse.document.DocumentWatermark;
 import edu.utah.kmm.emerse.patient.PatientDTO;
+import edu.utah.kmm.emerse.patient.PatientIdMapping;
 import edu.utah.kmm.emerse.patient.PatientService;
 import edu.utah.kmm.emerse.solr.IndexRequestDTO;
 import edu.utah.kmm.emerse.solr.IndexRequestDTO.IndexRequestStatus;
-import edu.utah.kmm.emerse.solr.IndexRequestQueue;
 import edu.utah.kmm.emerse.solr.SolrService;
+import edu.utah.kmm.emerse.util.LruCache;
 import edu.utah.kmm.emerse.util.MiscUtil;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -15,13 +17,23 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.jdbc.core.support.SqlLobValue;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 
+import javax.annotation.PostConstruct;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.*;
 
 /**
@@ -38,20 +50,59 @@ public class DatabaseService {
     };
 
     private static final String[] QUEUE_INSERT_FIELDS = {
-            "SERVER_ID", "SUBMITTED", "TOTAL", "PROCESSED", "STATUS", "ELAPSED", "IDENTIFIER_TYPE", "IDENTIFIERS"
+            "SERVER_ID", "SUBMITTED", "TOTAL", "PROCESSED", "STATUS", "ELAPSED", "IDENTIFIER_TYPE", "PRIORITY"
     };
 
     private static final String[] QUEUE_SUMMARY_FIELDS = {
-            "ID", "COMPLETED", "SUBMITTED", "TOTAL", "PROCESSED", "STATUS", "ELAPSED", "IDENTIFIER_TYPE", "ERROR_TEXT"
+            "ID", "COMPLETED", "SUBMITTED", "TOTAL", "PROCESSED", "STATUS", "ELAPSED", "IDENTIFIER_TYPE", "PRIORITY", "ERROR_TEXT"
     };
 
-    private static final String QUEUE_FETCH_REQUEST = "SELECT * FROM " + QUEUE_TABLE + " WHERE ID=:ID";
+    private static final String QUEUE_FETCH_REQUEST = "SELECT ID, SERVER_ID, SUBMITTED, COMPLETED, TOTAL, PROCESSED,"
+            + " STATUS, ELAPSED, ERROR_TEXT, IDENTIFIER_TYPE, PRIORITY,"
+            + " CASE WHEN IDENTIFIERS IS NULL THEN 0 ELSE 1 END AS LEGACY_IDENTIFIERS"
+            + " FROM " + QUEUE_TABLE + " WHERE ID=:ID";
 
-    private static final String QUEUE_SCAN = "SELECT ID FROM " + QUEUE_TABLE
-            + " WHERE SERVER_ID=:SERVER_ID AND COMPLETED IS NULL AND STATUS = 0 ORDER BY SUBMITTED ASC";
+    private static final String QUEUE_FETCH_LEGACY_IDENTIFIERS = "SELECT IDENTIFIERS FROM " + QUEUE_TABLE
+            + " WHERE ID=:ID";
+
+    private static final String CHUNK_TABLE = "INDEXING_QUEUE_CHUNK";
+
+    private static final String CHUNK_INSERT = "INSERT INTO " + CHUNK_TABLE
+            + " (REQUEST_ID, CHUNK_NO, ID_COUNT, DATA) VALUES (:REQUEST_ID, :CHUNK_NO, :ID_COUNT, :DATA)";
+
+    private static final String CHUNK_FETCH = "SELECT DATA FROM " + CHUNK_TABLE
+            + " WHERE REQUEST_ID=:REQUEST_ID AND CHUNK_NO=:CHUNK_NO";
+
+    private static final String CHUNK_DELETE = "DELETE FROM " + CHUNK_TABLE + " WHERE REQUEST_ID=:REQUEST_ID";
+
+    private static final String QUEUE_SCAN = "SELECT ID, PRIORITY FROM " + QUEUE_TABLE
+            + " WHERE SERVER_ID=:SERVER_ID AND COMPLETED IS NULL AND STATUS = 0 ORDER BY PRIORITY ASC, SUBMITTED ASC";
+
+    private static final String QUEUE_CLAIMABLE = " COMPLETED IS NULL"
+            + " AND ((STATUS = 0 AND (LEASE_EXPIRES IS NULL OR LEASE_EXPIRES < SYSTIMESTAMP))"
+            + " OR (STATUS = 1 AND LEASE_EXPIRES < SYSTIMESTAMP))";
+
+    private static final String QUEUE_CLUSTER_SCAN = "SELECT ID, PRIORITY FROM " + QUEUE_TABLE
+            + " WHERE" + QUEUE_CLAIMABLE + " ORDER BY PRIORITY ASC, SUBMITTED ASC";
+
+    private static final String LEASE_EXPIRATION = "SYSTIMESTAMP + NUMTODSINTERVAL(:LEASE_SECONDS, 'SECOND')";
+
+    private static final String QUEUE_CLAIM = "UPDATE " + QUEUE_TABLE
+            + " SET STATUS = 0, LEASE_OWNER = :SERVER_ID, LEASE_EXPIRES = " + LEASE_EXPIRATION
+            + " WHERE ID = :ID AND" + QUEUE_CLAIMABLE;
+
+    private static final String QUEUE_RENEW = "UPDATE " + QUEUE_TABLE
+            + " SET LEASE_EXPIRES = " + LEASE_EXPIRATION
+            + " WHERE ID = :ID AND LEASE_OWNER = :SERVER_ID";
+
+    private static final String QUEUE_RELEASE = "UPDATE " + QUEUE_TABLE
+            + " SET LEASE_OWNER = NULL, LEASE_EXPIRES = NULL"
+            + " WHERE ID = :ID AND LEASE_OWNER = :SERVER_ID";
 
     private static final String QUEUE_DELETE_REQUEST = "DELETE FROM " + QUEUE_TABLE + " WHERE ID=:ID";
 
+    private static final String QUEUE_LEASE_HELD = " AND LEASE_OWNER = :LEASE_OWNER";
+
     private static final String PATIENT_TABLE = "PATIENT";
 
     private static final String[] PATIENT_UPDATE_FIELDS = {
@@ -74,6 +125,45 @@ public class DatabaseService {
             "START_DATETIME", "END_DATETIME", "PATIENT_COUNT"
     };
 
+    private static final String WATERMARK_TABLE = "DOCUMENT_WATERMARK";
+
+    private static final String WATERMARK_FETCH = "SELECT DOC_ID, PATIENT_ID, VERSION_ID, LAST_UPDATED, DIGEST FROM "
+            + WATERMARK_TABLE + " WHERE ";
+
+    private static final String WATERMARK_MERGE = "MERGE INTO " + WATERMARK_TABLE + " W"
+            + " USING (SELECT :DOC_ID DOC_ID, :PATIENT_ID PATIENT_ID, :VERSION_ID VERSION_ID,"
+            + " :LAST_UPDATED LAST_UPDATED, :DIGEST DIGEST FROM DUAL) S"
+            + " ON (W.DOC_ID = S.DOC_ID)"
+            + " WHEN MATCHED THEN UPDATE SET W.PATIENT_ID = S.PATIENT_ID, W.VERSION_ID = S.VERSION_ID,"
+            + " W.LAST_UPDATED = S.LAST_UPDATED, W.DIGEST = S.DIGEST"
+            + " WHEN NOT MATCHED THEN INSERT (DOC_ID, PATIENT_ID, VERSION_ID, LAST_UPDATED, DIGEST)"
+            + " VALUES (S.DOC_ID, S.PATIENT_ID, S.VERSION_ID, S.LAST_UPDATED, S.DIGEST)";
+
+    private static final RowMapper<DocumentWatermark> WATERMARK_MAPPER = (rs, i) -> new DocumentWatermark(
+            rs.getString("DOC_ID"),
+            rs.getString("PATIENT_ID"),
+            rs.getString("VERSION_ID"),
+            rs.getTimestamp("LAST_UPDATED"),
+            rs.getString("DIGEST"));
+
+    private static final int MAX_IN_LIST = 1000;
+
+    private static final String PATIENT_ID_MAP_TABLE = "PATIENT_ID_MAP";
+
+    private static final String PATIENT_ID_MAP_FETCH = "SELECT MRN, PATIENT_ID, RESOLVED FROM " + PATIENT_ID_MAP_TABLE
+            + " WHERE ";
+
+    private static final String PATIENT_ID_MAP_MERGE = "MERGE INTO " + PATIENT_ID_MAP_TABLE + " M"
+            + " USING (SELECT :MRN MRN, :PATIENT_ID PATIENT_ID, :RESOLVED RESOLVED FROM DUAL) S"
+            + " ON (M.MRN = S.MRN)"
+            + " WHEN MATCHED THEN UPDATE SET M.PATIENT_ID = S.PATIENT_ID, M.RESOLVED = S.RESOLVED"
+            + " WHEN NOT MATCHED THEN INSERT (MRN, PATIENT_ID, RESOLVED) VALUES (S.MRN, S.PATIENT_ID, S.RESOLVED)";
+
+    private static final RowMapper<PatientIdMapping> PATIENT_ID_MAP_MAPPER = (rs, i) -> new PatientIdMapping(
+            rs.getString("MRN"),
+            rs.getString("PATIENT_ID"),
+            rs.getTimestamp("RESOLVED"));
+
     private final NamedParameterJdbcTemplate jdbcTemplate;
 
     private final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
@@ -81,6 +171,17 @@ public class DatabaseService {
     @Value("${server.uuid}")
     private String serverId;
 
+    @Value("${solr.queue.cluster:false}")
+    private boolean clusterMode;
+
+    @Value("${datasource.patient.cache.size:100000}")
+    private int patientCacheSize;
+
+    @Value("${datasource.patient.cache.warm:false}")
+    private boolean warmPatientCache;
+
+    private LruCache<String, Integer> patientCache;
+
     @Autowired
     private SolrService solrService;
 
@@ -91,6 +192,107 @@ public class DatabaseService {
         jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
     }
 
+    @PostConstruct
+    private void init() {
+        verifySchema();
+
+        if (clusterMode && patientCacheSize > 0) {
+            log.warn("Patient cache disabled in cluster mode: cached ids would not be invalidated when another server"
+                    + " deletes patients.");
+            patientCacheSize = 0;
+        }
+
+        patientCache = new LruCache<>(patientCacheSize);
+
+        if (warmPatientCache && patientCacheSize > 0) {
+            try {
+                warmPatientCache();
+            } catch (Exception e) {
+                log.error("Error warming patient cache", e);
+            }
+        }
+    }
+
+    /**
+     * Loads MRN to EMERSE id mappings from the PATIENT table into the patient cache, up to the cache's capacity.
+     */
+    public void warmPatientCache() {
+        JdbcTemplate template = new JdbcTemplate(jdbcTemplate.getJdbcTemplate().getDataSource());
+        template.setFetchSize(1000);
+        template.setMaxRows(patientCache.getMaxSize());
+        template.query("SELECT ID, EXTERNAL_ID FROM " + PATIENT_TABLE, (RowCallbackHandler) rs -> {
+            if (!patientCache.isFull()) {
+                patientCache.put(rs.getString("EXTERNAL_ID"), rs.getInt("ID"));
+            }
+        });
+
+        log.info("Loaded " + patientCache.size() + " entries into patient cache");
+    }
+
+    /**
+     * Returns true if a table exists and has the specified columns.  Used to detect whether the changes in
+     * emerse-it-schema.sql have been applied to the database.
+     *
+     * @param table The table name.
+     * @param columns The column names (if none, only the existence of the table is checked).
+     * @return True if the table and columns exist.
+     */
+    public boolean hasTable(
+            String table,
+            String... columns) {
+        String select = columns.length == 0 ? "*" : String.join(",", columns);
+
+        try {
+            jdbcTemplate.getJdbcTemplate().queryForList("SELECT " + select + " FROM " + table + " WHERE 1=0");
+            return true;
+        } catch (BadSqlGrammarException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Verifies that the tables and columns required by this version exist, so that an outdated schema is reported at
+     * startup rather than by every request that uses them.
+     */
+    private void verifySchema() {
+        requireTable(CHUNK_TABLE);
+        requireTable(QUEUE_TABLE, "PRIORITY");
+
+        if (clusterMode) {
+            requireTable(QUEUE_TABLE, "LEASE_OWNER", "LEASE_EXPIRES");
+        }
+    }
+
+    /**
+     * Throws an exception if a table or any of the specified columns does not exist.
+     *
+     * @param table The table name.
+     * @param columns The column names.
+     */
+    private void requireTable(
+            String table,
+            String... columns) {
+        if (!hasTable(table, columns)) {
+            throw new IllegalStateException("The database schema is out of date: " + table
+                    + (columns.length == 0 ? "" : " (" + String.join(", ", columns) + ")")
+                    + " not found.  Run emerse-it-schema.sql to upgrade the database.");
+        }
+    }
+
+    /**
+     * Returns true if the DOCUMENT_WATERMARK table exists.
+     */
+    public boolean hasDocumentWatermarks() {
+        return hasTable(WATERMARK_TABLE);
+    }
+
+    /**
+     * Returns true if the PATIENT_ID_MAP table exists.
+     */
+    public boolean hasPatientIdMappings() {
+        return hasTable(PATIENT_ID_MAP_TABLE);
+    }
+
     public String getDatabaseVersion() {
         try {
             return getConnection().getMetaData().getDatabaseProductVersion();
@@ -218,7 +420,9 @@ public class DatabaseService {
     }
 
     /**
-     * Creates or updates entry in the PATIENT table.
+     * Creates or updates entry in the PATIENT table.  If the patient is already known and updates are not permitted,
+     * this normally requires no database access.  If the entry for a known patient has since been deleted, the update
+     * affects no rows and the patient is inserted again.
      *
      * @param patient Patient resource.
      */
@@ -230,7 +434,6 @@ public class DatabaseService {
             return;
         }
 
-        String SQL = recno == null ? getPatientInsertSQL() : getPatientUpdateSQL();
         Map<String, Object> params = new HashMap<>();
         params.put("ID", recno);
         params.put("EXTERNAL_ID", mrn);
@@ -242,11 +445,20 @@ public class DatabaseService {
         PatientDTO patientDTO = new PatientDTO(patient, params);
 
         try {
-            jdbcTemplate.update(SQL, patientDTO.getMap());
+            if (recno != null && jdbcTemplate.update(getPatientUpdateSQL(), patientDTO.getMap()) == 0) {
+                log.warn("Patient " + recno + " no longer exists in the PATIENT table; reinserting it.");
+                patientCache.remove(mrn);
+                recno = null;
+                patientDTO.getMap().put("ID", null);
+            }
 
             if (recno == null) {
-                recno = getPatientEmerseId(mrn);
+                KeyHolder keyHolder = new GeneratedKeyHolder();
+                jdbcTemplate.update(getPatientInsertSQL(), new MapSqlParameterSource(patientDTO.getMap()), keyHolder,
+                        new String[] {"ID"});
+                recno = keyHolder.getKey().intValue();
                 patientDTO.getMap().put("ID", recno);
+                patientCache.put(mrn, recno);
             }
 
             solrService.indexPatient(patientDTO);
@@ -257,16 +469,24 @@ public class DatabaseService {
     }
 
     /**
-     * Returns the EMERSE id for the patient with the specified MRN.
+     * Returns the EMERSE id for the patient with the specified MRN, consulting the patient cache first.
      *
      * @param mrn The patient's MRN.
      * @return The patient's EMERSE id, or null if the patient was not found.
      */
     private Integer getPatientEmerseId(String mrn) {
+        Integer recno = patientCache.get(mrn);
+
+        if (recno != null) {
+            return recno;
+        }
+
         MapSqlParameterSource params = new MapSqlParameterSource();
         params.addValue("MRN", mrn);
         try {
-            return jdbcTemplate.queryForObject("SELECT ID FROM PATIENT WHERE EXTERNAL_ID = :MRN", params, Integer.class);
+            recno = jdbcTemplate.queryForObject("SELECT ID FROM PATIENT WHERE EXTERNAL_ID = :MRN", params, Integer.class);
+            patientCache.put(mrn, recno);
+            return recno;
         } catch (EmptyResultDataAccessException e) {
             return null;
         }
@@ -293,49 +513,357 @@ public class DatabaseService {
      * @return The DTO for the index request.
      */
     public IndexRequestDTO fetchIndexRequest(String id) {
-        return jdbcTemplate.queryForObject(QUEUE_FETCH_REQUEST, Collections.singletonMap("ID", id), (rs, i) -> new IndexRequestDTO(rs));
+        return jdbcTemplate.queryForObject(QUEUE_FETCH_REQUEST, Collections.singletonMap("ID", id), (rs, i) ->
+                new IndexRequestDTO(rs, getIdentifierSource(id, rs.getInt("LEGACY_IDENTIFIERS") == 1)));
+    }
+
+    /**
+     * Returns a source that streams the identifiers of a persisted index request.
+     *
+     * @param id The index request ID.
+     * @param legacy If true, the identifiers are stored in the IDENTIFIERS column of the INDEXING_QUEUE table (as
+     *               they were before chunked storage was introduced) and are read in their entirety.
+     * @return The identifier source.
+     */
+    private IndexRequestDTO.IIdentifierSource getIdentifierSource(
+            String id,
+            boolean legacy) {
+        return legacy ? getLegacyIdentifierSource(id) : getIdentifierSource(id);
+    }
+
+    /**
+     * Returns a source that streams identifiers stored in chunks for an index request.
+     *
+     * @param id The index request ID.
+     * @return The identifier source.
+     */
+    public IndexRequestDTO.IIdentifierSource getIdentifierSource(String id) {
+        return fromIndex -> new IdentifierChunks.Reader(chunkNo -> fetchIdentifierChunk(id, chunkNo), fromIndex);
+    }
+
+    /**
+     * Returns a source for identifiers stored in the IDENTIFIERS column of the INDEXING_QUEUE table.
+     *
+     * @param id The index request ID.
+     * @return The identifier source.
+     */
+    private IndexRequestDTO.IIdentifierSource getLegacyIdentifierSource(String id) {
+        return fromIndex -> {
+            String identifiers = jdbcTemplate.queryForObject(QUEUE_FETCH_LEGACY_IDENTIFIERS,
+                    Collections.singletonMap("ID", id), String.class);
+            List<String> list = identifiers == null ? Collections.emptyList() : Arrays.asList(identifiers.split("\n"));
+            return list.listIterator(Math.min(fromIndex, list.size()));
+        };
+    }
+
+    /**
+     * Fetches a chunk of identifiers for an index request.
+     *
+     * @param id The index request ID.
+     * @param chunkNo The chunk number.
+     * @return The identifiers in the chunk, or null if there is no such chunk.
+     */
+    private List<String> fetchIdentifierChunk(
+            String id,
+            int chunkNo) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("REQUEST_ID", id)
+                .addValue("CHUNK_NO", chunkNo);
+        List<byte[]> data = jdbcTemplate.query(CHUNK_FETCH, params, (rs, i) -> rs.getBytes("DATA"));
+        return data.isEmpty() ? null : IdentifierChunks.decode(data.get(0));
+    }
+
+    /**
+     * Stores the identifiers of a new index request as compressed chunks.  Identifiers are consumed as they are
+     * stored, so only a single chunk is held in memory.
+     *
+     * @param id The index request ID.
+     * @param identifiers The identifiers.
+     */
+    public void saveIdentifiers(
+            String id,
+            Iterator<String> identifiers) {
+        deleteIdentifiers(id);
+        List<String> chunk = new ArrayList<>(IdentifierChunks.CHUNK_SIZE);
+        int chunkNo = 0;
+
+        while (identifiers.hasNext()) {
+            chunk.add(identifiers.next());
+
+            if (chunk.size() == IdentifierChunks.CHUNK_SIZE || !identifiers.hasNext()) {
+                saveIdentifierChunk(id, chunkNo++, chunk);
+                chunk.clear();
+            }
+        }
+    }
+
+    /**
+     * Deletes the stored identifiers for an index request.
+     *
+     * @param id The index request ID.
+     */
+    public void deleteIdentifiers(String id) {
+        jdbcTemplate.update(CHUNK_DELETE, Collections.singletonMap("REQUEST_ID", id));
+    }
+
+    /**
+     * Stores a chunk of identifiers for an index request.
+     *
+     * @param id The index request ID.
+     * @param chunkNo The chunk number.
+     * @param identifiers The identifiers in the chunk.
+     */
+    private void saveIdentifierChunk(
+            String id,
+            int chunkNo,
+            List<String> identifiers) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("REQUEST_ID", id)
+                .addValue("CHUNK_NO", chunkNo)
+                .addValue("ID_COUNT", identifiers.size())
+                .addValue("DATA", new SqlLobValue(IdentifierChunks.encode(identifiers)), Types.BLOB);
+        jdbcTemplate.update(CHUNK_INSERT, params);
     }
 
     /**
-     * Updates the INDEXING_QUEUE entry for an index request if that request has changed since the last update.
+     * Updates the INDEXING_QUEUE entry for an index request if that request has changed since the last update.  Updates
+     * of the same request are serialized, so that a snapshot is never overwritten by an older one.
+     * <p>
+     * If this server holds a lease on the request, the entry is updated only while the lease is still held.  If it is
+     * not, the lease has been lost to another server, and the request is stopped locally.
      *
      * @param request The index request to update.
      */
     public void updateIndexRequest(IndexRequestDTO request) {
-        if (request.changed()) {
-            boolean delete = request.getStatus() == IndexRequestStatus.DELETED;
-            String SQL = delete ? QUEUE_DELETE_REQUEST : request.initial() ? getQueueInsertSQL() : getQueueUpdateSQL();
-            Map<String, Object> map = delete ? Collections.singletonMap("ID", request.getId()) : request.getMap();
-            try {
-                jdbcTemplate.update(SQL, map);
-                request.clearChanged();
-            } catch (DataAccessException e) {
-                log.error(e.getMessage(), e);
-                MiscUtil.rethrow(e);
+        synchronized (request) {
+            if (request.changed() && !request.isLeaseLost()) {
+                boolean delete = request.getStatus() == IndexRequestStatus.DELETED;
+                boolean leased = !request.initial() && request.isLeased();
+                String SQL = delete ? QUEUE_DELETE_REQUEST : request.initial() ? getQueueInsertSQL() : getQueueUpdateSQL();
+                Map<String, Object> map = delete ? Collections.singletonMap("ID", request.getId()) : request.getMap();
+                MapSqlParameterSource params = new MapSqlParameterSource(map);
+
+                if (leased) {
+                    SQL += QUEUE_LEASE_HELD;
+                    params.addValue("LEASE_OWNER", serverId);
+                }
+
+                try {
+                    if (jdbcTemplate.update(SQL, params) == 0 && leased) {
+                        log.warn("Lease on index request " + request.getId() + " was lost; stopping local processing");
+                        request.leaseLost();
+                        return;
+                    }
+
+                    if (delete) {
+                        deleteIdentifiers(request.getId());
+                    }
+
+                    request.clearChanged();
+                } catch (DataAccessException e) {
+                    log.error(e.getMessage(), e);
+                    MiscUtil.rethrow(e);
+                }
             }
         }
     }
 
     /**
-     * Scans the INDEXING_QUEUE table for queued entries, populating the index request queue.
+     * Scans the INDEXING_QUEUE table for queued entries.
+     *
+     * @param mapper Maps each entry's ID and PRIORITY columns.
+     * @param <T> The mapped type.
+     * @return The mapped entries.
+     */
+    public <T> List<T> scanQueue(RowMapper<T> mapper) {
+        return jdbcTemplate.query(clusterMode ? QUEUE_CLUSTER_SCAN : QUEUE_SCAN,
+                Collections.singletonMap("SERVER_ID", serverId), mapper);
+    }
+
+    /**
+     * Returns true if queue entries are shared by all servers rather than pinned to the server that received them.
+     */
+    public boolean isClusterMode() {
+        return clusterMode;
+    }
+
+    /**
+     * Attempts to claim an INDEXING_QUEUE entry for this server (cluster mode only).  An entry can be claimed if it
+     * is queued and not leased by another server, or if it is running under a lease that has expired (i.e., the
+     * server processing it has died).  A claimed entry is reset to queued so that it resumes from its last
+     * checkpoint.
+     *
+     * @param id The index request ID.
+     * @param leaseSeconds The duration of the lease.
+     * @return True if the entry was claimed.
+     */
+    public boolean claimIndexRequest(
+            String id,
+            int leaseSeconds) {
+        return jdbcTemplate.update(QUEUE_CLAIM, leaseParams(id, leaseSeconds)) == 1;
+    }
+
+    /**
+     * Extends this server's leases on INDEXING_QUEUE entries.
      *
-     * @param queue The index request queue.
+     * @param ids The index request IDs.
+     * @param leaseSeconds The duration of the lease.
+     * @return The IDs of entries whose lease could not be renewed because it is no longer held by this server.
      */
-    public void refreshQueue(IndexRequestQueue queue) {
-        jdbcTemplate.query(QUEUE_SCAN, Collections.singletonMap("SERVER_ID", serverId), queue);
+    public List<String> renewIndexRequestLeases(
+            List<String> ids,
+            int leaseSeconds) {
+        SqlParameterSource[] batch = ids.stream()
+                .map(id -> leaseParams(id, leaseSeconds))
+                .toArray(SqlParameterSource[]::new);
+        int[] counts = jdbcTemplate.batchUpdate(QUEUE_RENEW, batch);
+        List<String> lost = new ArrayList<>();
+
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                lost.add(ids.get(i));
+            }
+        }
+
+        return lost;
     }
 
     /**
-     * Returns all INDEXING_QUEUE entries for this server id.
+     * Releases this server's lease on an INDEXING_QUEUE entry.
+     *
+     * @param id The index request ID.
+     */
+    public void releaseIndexRequest(String id) {
+        jdbcTemplate.update(QUEUE_RELEASE, leaseParams(id, 0));
+    }
+
+    private MapSqlParameterSource leaseParams(
+            String id,
+            int leaseSeconds) {
+        return new MapSqlParameterSource()
+                .addValue("ID", id)
+                .addValue("SERVER_ID", serverId)
+                .addValue("LEASE_SECONDS", leaseSeconds);
+    }
+
+    /**
+     * Returns all INDEXING_QUEUE entries for this server id (or for all servers in cluster mode).
      */
     public List<Map<String, Object>> fetchQueueEntries() {
         String sql = "SELECT " + StringUtils.join(QUEUE_SUMMARY_FIELDS, ",")
                 + " FROM " + QUEUE_TABLE
-                + " WHERE SERVER_ID=:SERVER_ID"
+                + (clusterMode ? "" : " WHERE SERVER_ID=:SERVER_ID")
                 + " ORDER BY SUBMITTED DESC";
         return jdbcTemplate.queryForList(sql, Collections.singletonMap("SERVER_ID", serverId));
     }
 
+    /**
+     * Returns the recorded watermarks for all indexed documents belonging to a patient.
+     *
+     * @param patientId The patient's FHIR id.
+     * @return Map of document id to watermark (never null).
+     */
+    public Map<String, DocumentWatermark> fetchDocumentWatermarks(String patientId) {
+        Map<String, DocumentWatermark> watermarks = new HashMap<>();
+        jdbcTemplate.query(WATERMARK_FETCH + "PATIENT_ID = :PATIENT_ID",
+                Collections.singletonMap("PATIENT_ID", patientId), WATERMARK_MAPPER)
+                .forEach(watermark -> watermarks.put(watermark.getDocumentId(), watermark));
+        return watermarks;
+    }
+
+    /**
+     * Returns the recorded watermark for an indexed document.
+     *
+     * @param documentId The document's FHIR id.
+     * @return The watermark, or null if none was recorded.
+     */
+    public DocumentWatermark fetchDocumentWatermark(String documentId) {
+        List<DocumentWatermark> watermarks = jdbcTemplate.query(WATERMARK_FETCH + "DOC_ID = :DOC_ID",
+                Collections.singletonMap("DOC_ID", documentId), WATERMARK_MAPPER);
+        return watermarks.isEmpty() ? null : watermarks.get(0);
+    }
+
+    /**
+     * Records the watermarks for indexed documents, replacing any existing entries.
+     *
+     * @param watermarks The watermarks to record.
+     */
+    public void saveDocumentWatermarks(Collection<DocumentWatermark> watermarks) {
+        SqlParameterSource[] batch = watermarks.stream()
+                .map(watermark -> new MapSqlParameterSource()
+                        .addValue("DOC_ID", watermark.getDocumentId(), Types.VARCHAR)
+                        .addValue("PATIENT_ID", watermark.getPatientId(), Types.VARCHAR)
+                        .addValue("VERSION_ID", watermark.getVersionId(), Types.VARCHAR)
+                        .addValue("LAST_UPDATED", watermark.getLastUpdated(), Types.TIMESTAMP)
+                        .addValue("DIGEST", watermark.getDigest(), Types.VARCHAR))
+                .toArray(SqlParameterSource[]::new);
+
+        try {
+            jdbcTemplate.batchUpdate(WATERMARK_MERGE, batch);
+        } catch (DataAccessException e) {
+            MiscUtil.rethrow(e);
+        }
+    }
+
+    /**
+     * Deletes all document watermarks, forcing all documents to be reindexed.
+     */
+    public void deleteDocumentWatermarks() {
+        deleteAllRows(WATERMARK_TABLE);
+    }
+
+    /**
+     * Returns the recorded mapping of an MRN to a FHIR id.
+     *
+     * @param mrn The MRN.
+     * @return The mapping, or null if none was recorded.
+     */
+    public PatientIdMapping fetchPatientIdMapping(String mrn) {
+        List<PatientIdMapping> mappings = jdbcTemplate.query(PATIENT_ID_MAP_FETCH + "MRN = :MRN",
+                Collections.singletonMap("MRN", mrn), PATIENT_ID_MAP_MAPPER);
+        return mappings.isEmpty() ? null : mappings.get(0);
+    }
+
+    /**
+     * Returns the recorded mappings of several MRNs to FHIR ids.
+     *
+     * @param mrns The MRNs.
+     * @return Map of MRN to mapping (never null).  MRNs with no recorded mapping are omitted.
+     */
+    public Map<String, PatientIdMapping> fetchPatientIdMappings(Collection<String> mrns) {
+        Map<String, PatientIdMapping> mappings = new HashMap<>();
+        List<String> list = new ArrayList<>(mrns);
+
+        for (int i = 0; i < list.size(); i += MAX_IN_LIST) {
+            jdbcTemplate.query(PATIENT_ID_MAP_FETCH + "MRN IN (:MRNS)",
+                    Collections.singletonMap("MRNS", list.subList(i, Math.min(list.size(), i + MAX_IN_LIST))),
+                    PATIENT_ID_MAP_MAPPER)
+                    .forEach(mapping -> mappings.put(mapping.getMrn(), mapping));
+        }
+
+        return mappings;
+    }
+
+    /**
+     * Records mappings of MRNs to FHIR ids, replacing any existing entries.
+     *
+     * @param mappings The mappings to record.
+     */
+    public void savePatientIdMappings(Collection<PatientIdMapping> mappings) {
+        SqlParameterSource[] batch = mappings.stream()
+                .map(mapping -> new MapSqlParameterSource()
+                        .addValue("MRN", mapping.getMrn(), Types.VARCHAR)
+                        .addValue("PATIENT_ID", mapping.getPatientId(), Types.VARCHAR)
+                        .addValue("RESOLVED", mapping.getResolved(), Types.TIMESTAMP))
+                .toArray(SqlParameterSource[]::new);
+
+        try {
+            jdbcTemplate.batchUpdate(PATIENT_ID_MAP_MERGE, batch);
+        } catch (DataAccessException e) {
+            MiscUtil.rethrow(e);
+        }
+    }
+
     private void deleteAllRows(String table) {
         jdbcTemplate.update("DELETE FROM " + table, Collections.emptyMap());
     }
@@ -343,5 +871,6 @@ public class DatabaseService {
     public void deleteAllPatients() {
         deleteAllRows(PATIENT_LIST_TABLE);
         deleteAllRows(PATIENT_TABLE);
+        patientCache.clear();
     }
 }
@@ -0,0 +1,119 @@
+package edu.utah.kmm.emerse.database;
+
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes and decodes the identifiers of an index request as fixed-size, gzip-compressed chunks.  Because every chunk
+ * but the last holds exactly {@link #CHUNK_SIZE} identifiers, the chunk containing any position can be located
+ * directly, and a request of any size can be read back one chunk at a time.
+ */
+public class IdentifierChunks {
+
+    public static final int CHUNK_SIZE = 10000;
+
+    /**
+     * Iterates over identifiers stored as chunks, loading one chunk at a time.
+     */
+    public static class Reader implements Iterator<String> {
+
+        private final IntFunction<List<String>> loader;
+
+        private int chunkNo;
+
+        private int skip;
+
+        private Iterator<String> chunk = Collections.emptyIterator();
+
+        private boolean exhausted;
+
+        /**
+         * Creates a reader.  No chunk is loaded until the first identifier is requested.
+         *
+         * @param loader Returns the identifiers in the chunk with the specified number, or null if there is no such
+         *               chunk.
+         * @param fromIndex The position of the first identifier to return.
+         */
+        public Reader(
+                IntFunction<List<String>> loader,
+                int fromIndex) {
+            this.loader = loader;
+            this.chunkNo = fromIndex / CHUNK_SIZE;
+            this.skip = fromIndex % CHUNK_SIZE;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!chunk.hasNext() && !exhausted) {
+                List<String> identifiers = loader.apply(chunkNo++);
+                exhausted = identifiers == null;
+
+                if (!exhausted) {
+                    chunk = identifiers.subList(Math.min(skip, identifiers.size()), identifiers.size()).iterator();
+                    skip = 0;
+                }
+            }
+
+            return chunk.hasNext();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return chunk.next();
+        }
+
+    }
+
+    /**
+     * Encodes a chunk of identifiers.
+     *
+     * @param identifiers The identifiers.
+     * @return The compressed, newline-delimited identifiers.
+     */
+    public static byte[] encode(List<String> identifiers) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(String.join("\n", identifiers).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            MiscUtil.rethrow(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a chunk of identifiers.
+     *
+     * @param data The compressed, newline-delimited identifiers.
+     * @return The identifiers.
+     */
+    public static List<String> decode(byte[] data) {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return IOUtils.readLines(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return MiscUtil.rethrow(e);
+        }
+    }
+
+    private IdentifierChunks() {
+    }
+
+}
@@ -3,6 +3,7 @@ package edu.utah.kmm.emerse.document;
 import edu.utah.kmm.emerse.database.BaseDTO;
 import edu.utah.kmm.emerse.util.MiscUtil;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.solr.common.StringUtils;
 
 /**
@@ -42,4 +43,13 @@ public class ContentDTO extends BaseDTO {
     public String getContentType() {
         return contentType;
     }
+
+    /**
+     * Returns an MD5 digest of the content, used to detect unchanged documents.
+     *
+     * @return The hex-encoded digest, or null if there is no content.
+     */
+    public String getDigest() {
+        return content == null ? null : DigestUtils.md5Hex(content);
+    }
 }
@@ -0,0 +1,29 @@
+package edu.utah.kmm.emerse.document;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Thread pool shared by all indexing daemons for fetching and indexing document content.  The number of tasks in
+ * progress follows the FHIR server's adaptive concurrency limit, so threads are started as the limit grows and retire
+ * once idle, up to the configured maximum.  Subclasses Spring's ThreadPoolTaskExecutor to make it easier to inject
+ * settings.
+ */
+public class DocumentFetchPool extends ThreadPoolTaskExecutor {
+
+    @Value("${fhir.document.fetch.threads:64}")
+    private int maxThreads;
+
+    @PostConstruct
+    private void init() {
+        setCorePoolSize(maxThreads);
+        setMaxPoolSize(maxThreads);
+        setKeepAliveSeconds(60);
+        setAllowCoreThreadTimeOut(true);
+        setThreadNamePrefix("EMERSE-IT document fetch-");
+        setDaemon(true);
+    }
+
+}
@@ -0,0 +1,26 @@
+package edu.utah.kmm.emerse.document;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Small thread pool for prefetching document search result pages.  Kept separate from the document fetch pool so
+ * that a page fetch never waits behind queued document content fetches.  Subclasses Spring's ThreadPoolTaskExecutor
+ * to make it easier to inject settings.
+ */
+public class DocumentPagePool extends ThreadPoolTaskExecutor {
+
+    @Value("${fhir.document.page.threads:4}")
+    private int maxThreads;
+
+    @PostConstruct
+    private void init() {
+        setCorePoolSize(maxThreads);
+        setMaxPoolSize(maxThreads);
+        setThreadNamePrefix("EMERSE-IT document page-");
+        setDaemon(true);
+    }
+
+}
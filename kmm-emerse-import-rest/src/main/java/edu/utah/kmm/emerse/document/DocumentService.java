@@ -1,16 +1,19 @@
 package edu.utah.kmm.emerse.document;
 
+import edu.utah.kmm.emerse.fhir.BundlePager;
 import edu.utah.kmm.emerse.fhir.FhirService;
 import edu.utah.kmm.emerse.fhir.IdentifierType;
 import edu.utah.kmm.emerse.patient.PatientService;
+import edu.utah.kmm.emerse.throttle.EndpointClass;
 import edu.utah.kmm.emerse.util.MiscUtil;
 import org.apache.commons.lang.StringUtils;
 import org.hl7.fhir.dstu3.model.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /**
  * Service for document-related operations.
@@ -23,9 +26,15 @@ public class DocumentService {
     @Autowired
     private PatientService patientService;
 
+    @Autowired
+    private DocumentPagePool documentPagePool;
+
     @Value("${fhir.document.classes:clinical-notes}")
     private String documentClasses;
 
+    @Value("${fhir.document.page.size:100}")
+    private int pageSize;
+
     /**
      * Returns a document given its FHIR id.
      *
@@ -46,23 +55,36 @@ public class DocumentService {
     public List<DocumentReference> getDocumentsForPatient(
             String id,
             IdentifierType type) {
+        List<DocumentReference> documents = new ArrayList<>();
+        iterateDocumentsForPatient(id, type).forEachRemaining(documents::add);
+        return documents;
+    }
+
+    /**
+     * Returns an iterator over all documents for the specified patient.  Search result pages are fetched as the
+     * iterator is consumed, with the next page being prefetched in the background.
+     *
+     * @param id The patient identifier.
+     * @param type The identifier type.
+     * @return An iterator over the documents for the specified patient (never null).
+     */
+    public Iterator<DocumentReference> iterateDocumentsForPatient(
+            String id,
+            IdentifierType type) {
         MiscUtil.validateIdentiferType(type, IdentifierType.MRN, IdentifierType.PATID);
 
         if (type == IdentifierType.MRN) {
             id = patientService.getPatientByMrn(id).getId();
         }
 
-        Bundle bundle = fhirService.getGenericClient().search()
+        Bundle bundle = fhirService.execute(EndpointClass.FHIR_SEARCH, fhirService.getGenericClient().search()
                 .forResource(DocumentReference.class)
                 .where(DocumentReference.PATIENT.hasId(id))
                 .where(DocumentReference.CLASS.exactly().code(documentClasses.replace(" ", "")))
-                .returnBundle(Bundle.class)
-                .execute();
+                .count(pageSize)
+                .returnBundle(Bundle.class));
 
-        return bundle.getEntry().stream()
-                .filter(entry -> entry.getResource() instanceof DocumentReference)
-                .map(entry -> (DocumentReference) entry.getResource())
-                .collect(Collectors.toList());
+        return new BundlePager<>(fhirService, bundle, DocumentReference.class, documentPagePool);
     }
 
     /**
@@ -127,7 +149,8 @@ public class DocumentService {
             }
 
             if (!attachment.getUrlElement().isEmpty()) {
-                Binary data = fhirService.getGenericClient().read().resource(Binary.class).withUrl(attachment.getUrl()).execute();
+                Binary data = fhirService.execute(EndpointClass.FHIR_BINARY,
+                        fhirService.getGenericClient().read().resource(Binary.class).withUrl(attachment.getUrl()));
                 return new ContentDTO(data.getContentAsBase64(), data.getContentType());
             }
         }
@@ -0,0 +1,119 @@
+package edu.utah.kmm.emerse.document;
+
+import org.hl7.fhir.dstu3.model.DocumentReference;
+import org.hl7.fhir.dstu3.model.Meta;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Records the version of a document at the time it was last indexed.  Used to avoid refetching and reindexing
+ * documents that have not changed.
+ */
+public class DocumentWatermark {
+
+    private final String documentId;
+
+    private final String patientId;
+
+    private final String versionId;
+
+    private final Date lastUpdated;
+
+    private final String digest;
+
+    public DocumentWatermark(
+            String documentId,
+            String patientId,
+            String versionId,
+            Date lastUpdated,
+            String digest) {
+        this.documentId = documentId;
+        this.patientId = patientId;
+        this.versionId = versionId;
+        this.lastUpdated = lastUpdated;
+        this.digest = digest;
+    }
+
+    /**
+     * Creates a watermark from a document's metadata.
+     *
+     * @param document The document.
+     * @param patientId The FHIR id of the document's subject, as resolved by the caller.  This is the id under which
+     *                  the watermarks for a patient's documents are looked up.
+     * @return The watermark (without a content digest).
+     */
+    public static DocumentWatermark forDocument(
+            DocumentReference document,
+            String patientId) {
+        Meta meta = document.getMeta();
+        return new DocumentWatermark(
+                document.getIdElement().getIdPart(),
+                patientId,
+                meta.getVersionId(),
+                meta.getLastUpdated(),
+                null);
+    }
+
+    /**
+     * Returns a copy of this watermark with the specified content digest.
+     *
+     * @param digest The content digest.
+     * @return The new watermark.
+     */
+    public DocumentWatermark withDigest(String digest) {
+        return new DocumentWatermark(documentId, patientId, versionId, lastUpdated, digest);
+    }
+
+    /**
+     * Returns true if this watermark represents the same document version as a previously recorded one.  The version
+     * id is compared if available, otherwise the last updated time.  If neither is available, the version cannot be
+     * determined from metadata alone.
+     *
+     * @param recorded The previously recorded watermark (may be null).
+     * @return True if the document version is unchanged.
+     */
+    public boolean isSameVersion(DocumentWatermark recorded) {
+        if (recorded == null) {
+            return false;
+        }
+
+        if (versionId != null && recorded.versionId != null) {
+            return versionId.equals(recorded.versionId);
+        }
+
+        return lastUpdated != null && recorded.lastUpdated != null
+                && lastUpdated.getTime() == recorded.lastUpdated.getTime();
+    }
+
+    /**
+     * Returns true if this watermark's content digest matches that of a previously recorded one.
+     *
+     * @param recorded The previously recorded watermark (may be null).
+     * @return True if the document content is unchanged.
+     */
+    public boolean isSameContent(DocumentWatermark recorded) {
+        return recorded != null && digest != null && Objects.equals(digest, recorded.digest);
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public String getVersionId() {
+        return versionId;
+    }
+
+    public Date getLastUpdated() {
+        return lastUpdated;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+}
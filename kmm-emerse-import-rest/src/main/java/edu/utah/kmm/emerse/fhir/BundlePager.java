@@ -0,0 +1,110 @@
+package edu.utah.kmm.emerse.fhir;
+
+import edu.utah.kmm.emerse.throttle.EndpointClass;
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Iterates over the resources of a given type in a paged search result, following the bundle's next links.  While
+ * the resources of one page are being consumed, the following page is fetched in the background.  At most two pages
+ * are held in memory at any time.
+ *
+ * @param <T> The resource type.
+ */
+public class BundlePager<T extends Resource> implements Iterator<T> {
+
+    private final FhirService fhirService;
+
+    private final Class<T> resourceType;
+
+    private final Executor executor;
+
+    private Iterator<Bundle.BundleEntryComponent> entries;
+
+    private CompletableFuture<Bundle> nextPage;
+
+    private T next;
+
+    /**
+     * Creates a pager over a search result.
+     *
+     * @param fhirService The FHIR service used to fetch subsequent pages.
+     * @param firstPage The first page of the search result.
+     * @param resourceType The type of resource to return.  Resources of other types are skipped.
+     * @param executor The executor for background page fetches.
+     */
+    public BundlePager(
+            FhirService fhirService,
+            Bundle firstPage,
+            Class<T> resourceType,
+            Executor executor) {
+        this.fhirService = fhirService;
+        this.resourceType = resourceType;
+        this.executor = executor;
+        setPage(firstPage);
+    }
+
+    /**
+     * Makes a page current and begins fetching its successor, if any.
+     *
+     * @param page The new current page.
+     */
+    private void setPage(Bundle page) {
+        entries = page.getEntry().iterator();
+        nextPage = page.getLink(Bundle.LINK_NEXT) == null ? null
+                : CompletableFuture.supplyAsync(() -> fhirService.execute(EndpointClass.FHIR_SEARCH,
+                        fhirService.getGenericClient().loadPage().next(page)), executor);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (entries.hasNext()) {
+                Resource resource = entries.next().getResource();
+                next = resourceType.isInstance(resource) ? resourceType.cast(resource) : null;
+            } else if (nextPage != null) {
+                setPage(awaitNextPage());
+            } else {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        T result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Waits for the background fetch of the next page to complete.
+     *
+     * @return The next page.
+     */
+    private Bundle awaitNextPage() {
+        try {
+            return nextPage.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            return MiscUtil.rethrow(cause instanceof Exception ? (Exception) cause : e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return MiscUtil.rethrow(e);
+        }
+    }
+
+}
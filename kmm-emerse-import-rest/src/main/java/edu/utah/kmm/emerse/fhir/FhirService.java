@@ -1,13 +1,21 @@
 package edu.utah.kmm.emerse.fhir;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
 import ca.uhn.fhir.rest.client.interceptor.AdditionalRequestHeadersInterceptor;
+import ca.uhn.fhir.rest.gclient.IClientExecutable;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import edu.utah.kmm.emerse.auth.AuthenticatorRegistry;
 import edu.utah.kmm.emerse.auth.IAuthenticator;
 import edu.utah.kmm.emerse.security.Credentials;
+import edu.utah.kmm.emerse.throttle.AdaptiveLimiter;
+import edu.utah.kmm.emerse.throttle.EndpointClass;
+import edu.utah.kmm.emerse.throttle.RateLimiters;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hl7.fhir.dstu3.model.CapabilityStatement;
@@ -16,6 +24,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.Assert;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * FHIR-related services.
  */
@@ -35,6 +50,23 @@ public class FhirService {
     @Value("${fhir.server.timeout:20000}")
     private int timeout;
 
+    @Value("${fhir.limit.initial:16}")
+    private int initialLimit;
+
+    @Value("${fhir.limit.min:1}")
+    private int minLimit;
+
+    @Value("${fhir.limit.max:256}")
+    private int maxLimit;
+
+    @Value("${fhir.limit.tolerance:2.0}")
+    private double limitTolerance;
+
+    @Value("${fhir.limit.backoff:0.7}")
+    private double limitBackoff;
+
+    private AdaptiveLimiter limiter;
+
     @Autowired
     private FhirContext fhirContext;
 
@@ -44,13 +76,25 @@ public class FhirService {
     @Autowired
     private AuthenticatorRegistry authenticatorRegistry;
 
+    @Autowired
+    private RateLimiters rateLimiters;
+
     private volatile IGenericClient genericClient;
 
+    private IAuthenticator authenticator;
+
+    private final Map<String, String> additionalHeaders = new LinkedHashMap<>();
+
     private CapabilityStatement capabilityStatement;
 
     public FhirService() {
     }
 
+    @PostConstruct
+    private void init() {
+        limiter = new AdaptiveLimiter("fhir", initialLimit, minLimit, maxLimit, limitTolerance, limitBackoff);
+    }
+
     /**
      * Returns the generic client, initializing it if necessary.
      *
@@ -70,14 +114,17 @@ public class FhirService {
 
                 for (String header : extraHeaders.split("\\n")) {
                     String[] pcs = header.split(":", 2);
-                    interceptor.addHeaderValue(pcs[0].trim(), pcs.length == 2 ? pcs[1].trim() : "");
+                    String name = pcs[0].trim();
+                    String value = pcs.length == 2 ? pcs[1].trim() : "";
+                    additionalHeaders.put(name, value);
+                    interceptor.addHeaderValue(name, value);
                 }
 
                 genericClient.registerInterceptor(interceptor);
             }
 
             capabilityStatement = genericClient.capabilities().ofType(CapabilityStatement.class).execute();
-            IAuthenticator authenticator = authenticatorRegistry.get(authenticationType);
+            authenticator = authenticatorRegistry.get(authenticationType);
             Assert.notNull(authenticator, () -> "Unrecognized authentication scheme: " + authenticationType);
             log.info(("Using authentication scheme: " + authenticationType));
             authenticator.initialize(this);
@@ -93,6 +140,102 @@ public class FhirService {
         return genericClient == null ? initGenericClient() : genericClient;
     }
 
+    /**
+     * Returns the headers that the generic client adds to each request: the configured additional headers and the
+     * authenticator's Authorization header.  This allows HTTP requests made outside the generic client (such as bulk
+     * data requests) to be authenticated in the same way.
+     *
+     * @return Map of header name to value.
+     */
+    public Map<String, String> getRequestHeaders() {
+        initGenericClient();
+        Map<String, String> headers = new LinkedHashMap<>(additionalHeaders);
+        String authorization = authenticator == null ? null : authenticator.getAuthorizationHeader();
+
+        if (authorization != null) {
+            headers.put(Constants.HEADER_AUTHORIZATION, authorization);
+        }
+
+        return headers;
+    }
+
+    /**
+     * Executes a FHIR client operation under the rate limit for its endpoint class and the adaptive concurrency limit
+     * for the FHIR server.  A slot under the concurrency limit is obtained before the rate limit token, so that callers
+     * waiting for a slot do not accumulate tokens and then exceed the rate once slots become free.  An operation that is
+     * throttled by the server is retried once the period requested by the server has elapsed.
+     *
+     * @param endpointClass The endpoint class of the operation.
+     * @param executable The client operation.
+     * @param <T> The operation's result type.
+     * @return The operation's result.
+     */
+    public <T> T execute(
+            EndpointClass endpointClass,
+            IClientExecutable<?, T> executable) {
+        return rateLimiters.callGated(endpointClass,
+                token -> limiter.call(executable::execute, FhirService::isOverload, token),
+                FhirService::getRetryAfter);
+    }
+
+    /**
+     * If an exception thrown by a FHIR client operation indicates that the operation was throttled, returns the period
+     * after which it may be retried.
+     *
+     * @param e The exception.
+     * @return The period (in ms) from the Retry-After header (zero if absent), or null if not throttled.
+     */
+    private static Long getRetryAfter(Exception e) {
+        if (e instanceof BaseServerResponseException) {
+            BaseServerResponseException ex = (BaseServerResponseException) e;
+            int status = ex.getStatusCode();
+
+            if (status == 429 || status == 503) {
+                Map<String, List<String>> headers = ex.getResponseHeaders();
+
+                if (headers != null) {
+                    for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                        if ("Retry-After".equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                            return RateLimiters.parseRetryAfter(header.getValue().get(0));
+                        }
+                    }
+                }
+
+                return 0L;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if an exception thrown by a FHIR client operation indicates that the server is overloaded (a
+     * connection failure or timeout, a server error, or a throttled request).  Other exceptions, such as parsing
+     * errors, do not affect the concurrency limit.
+     *
+     * @param e The exception.
+     * @return True if the server is overloaded.
+     */
+    private static boolean isOverload(Exception e) {
+        if (e instanceof FhirClientConnectionException || e instanceof IOException) {
+            return true;
+        }
+
+        if (e instanceof BaseServerResponseException) {
+            int status = ((BaseServerResponseException) e).getStatusCode();
+            return status == 429 || status >= 500;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the adaptive concurrency limiter for the FHIR server.
+     */
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
     /**
      * Returns the FHIR server credentials.
      */
@@ -117,10 +260,19 @@ public class FhirService {
      * @return The resource that was fetched.
      */
     public <T extends IBaseResource> T readResource(Class<T> type, String fhirId) {
-        return getGenericClient().read()
+        return execute(EndpointClass.FHIR_READ, getGenericClient().read()
                 .resource(type)
-                .withId(fhirId)
-                .execute();
+                .withId(fhirId));
+    }
+
+    /**
+     * Returns a new JSON parser.  Parsers are not thread-safe, so one is created for each use.  This is cheap, because
+     * the resource definitions they rely on are cached by the shared FHIR context.
+     *
+     * @return A new JSON parser.
+     */
+    public IParser newJsonParser() {
+        return fhirContext.newJsonParser();
     }
 
     /**
@@ -130,7 +282,7 @@ public class FhirService {
      * @return The serialized form of the resource.
      */
     public String serialize(IBaseResource resource) {
-        return resource == null ? null : getGenericClient().getFhirContext().newJsonParser().encodeResourceToString(resource);
+        return resource == null ? null : newJsonParser().encodeResourceToString(resource);
     }
 
     /**
@@ -142,7 +294,19 @@ public class FhirService {
      * @return The deserialized resource.
      */
     public <T extends IBaseResource> T deserialize(String data, Class<T> resourceType) {
-        return data == null ? null : (T) getGenericClient().getFhirContext().newJsonParser().parseResource(data);
+        return data == null ? null : newJsonParser().parseResource(resourceType, data);
+    }
+
+    /**
+     * Deserialize a resource directly from a reader.
+     *
+     * @param reader The reader.
+     * @param resourceType The type of the resource.
+     * @param <T> The type of the resource.
+     * @return The deserialized resource.
+     */
+    public <T extends IBaseResource> T deserialize(Reader reader, Class<T> resourceType) {
+        return newJsonParser().parseResource(resourceType, reader);
     }
 
 }
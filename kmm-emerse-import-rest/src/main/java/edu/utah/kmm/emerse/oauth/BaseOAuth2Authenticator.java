@@ -24,6 +24,8 @@ public abstract class BaseOAuth2Authenticator implements IAuthenticator {
 
     private String fhirEndpoint;
 
+    private OAuthInterceptor interceptor;
+
     @Override
     public void initialize(FhirService fhirService) {
         fhirEndpoint = fhirService.getGenericClient().getServerBase();
@@ -31,6 +33,24 @@ public abstract class BaseOAuth2Authenticator implements IAuthenticator {
         getOAuthEndpoints(fhirService.getCapabilityStatement());
     }
 
+    /**
+     * Registers the interceptor that adds the access token to requests made by the generic client.
+     *
+     * @param fhirService The FHIR service.
+     * @param interceptor The interceptor.
+     */
+    protected void registerInterceptor(
+            FhirService fhirService,
+            OAuthInterceptor interceptor) {
+        this.interceptor = interceptor;
+        fhirService.getGenericClient().registerInterceptor(interceptor);
+    }
+
+    @Override
+    public String getAuthorizationHeader() {
+        return interceptor == null ? null : interceptor.getAuthorizationHeader();
+    }
+
     private void getOAuthEndpoints(CapabilityStatement cp) {
         for (Extension ext : cp.getRest().get(0).getSecurity().getExtension()) {
             if (OAUTH_EXTENSION.equals(ext.getUrl())) {
@@ -38,7 +38,7 @@ public class OAuth2Authenticator extends BaseOAuth2Authenticator {
     @Override
     public void initialize(FhirService fhirService) {
         super.initialize(fhirService);
-        fhirService.getGenericClient().registerInterceptor(new OAuth2Interceptor());
+        registerInterceptor(fhirService, new OAuth2Interceptor());
         Credentials credentials = fhirService.getCredentials();
         authHeader = "Basic " + new String(Base64.encodeBase64((credentials.getUsername() + ":" + credentials.getPassword()).getBytes()));
     }
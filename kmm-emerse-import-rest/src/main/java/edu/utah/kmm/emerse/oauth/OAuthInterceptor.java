@@ -24,9 +24,16 @@ public abstract class OAuthInterceptor implements IClientInterceptor {
         return accessToken.access_token;
     }
 
+    /**
+     * Returns the value of the Authorization header, generating a new access token if the current one has expired.
+     */
+    public String getAuthorizationHeader() {
+        return Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER + getToken();
+    }
+
     @Override
     public void interceptRequest(IHttpRequest theRequest) {
-        theRequest.addHeader(Constants.HEADER_AUTHORIZATION, (Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER + getToken()));
+        theRequest.addHeader(Constants.HEADER_AUTHORIZATION, getAuthorizationHeader());
     }
 
     @Override
@@ -1,11 +1,20 @@
 package edu.utah.kmm.emerse.patient;
 
+import edu.utah.kmm.emerse.fhir.BundlePager;
 import edu.utah.kmm.emerse.fhir.FhirService;
+import edu.utah.kmm.emerse.throttle.EndpointClass;
 import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Identifier;
 import org.hl7.fhir.dstu3.model.Patient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Default service for performing patient lookup by MRN.  Since some FHIR implementations may not support this
  * query logic, alternate lookup algorithms can be configured.
@@ -25,13 +34,44 @@ public class DefaultPatientLookup implements IPatientLookup {
 
     @Override
     public Patient lookupByMRN(String mrn) {
-        Bundle bundle = fhirService.getGenericClient().search()
+        Bundle bundle = fhirService.execute(EndpointClass.FHIR_SEARCH, fhirService.getGenericClient().search()
                 .forResource(Patient.class)
                 .where(Patient.IDENTIFIER.exactly().systemAndCode(mrnSystem, mrn))
-                .returnBundle(Bundle.class)
-                .execute();
+                .returnBundle(Bundle.class));
 
         return (Patient) bundle.getEntryFirstRep().getResource();
     }
 
+    /**
+     * Looks up several patients with a single search for any of their MRNs.
+     *
+     * @param mrns The MRNs.
+     * @return Map of MRN to patient resource.  MRNs that were not found are omitted.
+     */
+    @Override
+    public Map<String, Patient> lookupByMRNs(Collection<String> mrns) {
+        Map<String, Patient> patients = new LinkedHashMap<>();
+
+        if (mrns.isEmpty()) {
+            return patients;
+        }
+
+        Set<String> requested = new HashSet<>(mrns);
+        Bundle bundle = fhirService.execute(EndpointClass.FHIR_SEARCH, fhirService.getGenericClient().search()
+                .forResource(Patient.class)
+                .where(Patient.IDENTIFIER.exactly().systemAndValues(mrnSystem, mrns))
+                .count(mrns.size())
+                .returnBundle(Bundle.class));
+
+        new BundlePager<>(fhirService, bundle, Patient.class, Runnable::run).forEachRemaining(patient -> {
+            for (Identifier identifier : patient.getIdentifier()) {
+                if (mrnSystem.equals(identifier.getSystem()) && requested.contains(identifier.getValue())) {
+                    patients.putIfAbsent(identifier.getValue(), patient);
+                }
+            }
+        });
+
+        return patients;
+    }
+
 }
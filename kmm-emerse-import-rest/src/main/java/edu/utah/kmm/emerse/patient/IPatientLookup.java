@@ -2,6 +2,10 @@ package edu.utah.kmm.emerse.patient;
 
 import org.hl7.fhir.dstu3.model.Patient;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Implemented by all patient lookup services.
  */
@@ -11,4 +15,25 @@ public interface IPatientLookup {
 
     Patient lookupByMRN(String mrn);
 
+    /**
+     * Looks up several patients by MRN.  The default implementation looks up each MRN in turn.  Implementations should
+     * override this where several patients can be retrieved in a single call.
+     *
+     * @param mrns The MRNs.
+     * @return Map of MRN to patient resource.  MRNs that were not found are omitted.
+     */
+    default Map<String, Patient> lookupByMRNs(Collection<String> mrns) {
+        Map<String, Patient> patients = new LinkedHashMap<>();
+
+        for (String mrn : mrns) {
+            Patient patient = lookupByMRN(mrn);
+
+            if (patient != null) {
+                patients.put(mrn, patient);
+            }
+        }
+
+        return patients;
+    }
+
 }
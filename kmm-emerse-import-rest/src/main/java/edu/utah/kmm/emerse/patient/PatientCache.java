@@ -0,0 +1,251 @@
+package edu.utah.kmm.emerse.patient;
+
+import edu.utah.kmm.emerse.util.LruCache;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A cache of patient resources keyed by FHIR id and by MRN, bounded in both size and age.  Concurrent requests for the
+ * same uncached patient share a single fetch.  Because resources are mutable, the cache stores and returns copies.
+ */
+public class PatientCache {
+
+    /**
+     * A cached patient and its expiration time.
+     */
+    private static class Entry {
+
+        private final Patient patient;
+
+        private final long expires;
+
+        private Entry(
+                Patient patient,
+                long expires) {
+            this.patient = patient;
+            this.expires = expires;
+        }
+
+    }
+
+    private final LruCache<String, Entry> byId;
+
+    private final LruCache<String, String> idByMrn;
+
+    private final long ttl;
+
+    private final Function<Patient, String> mrnExtractor;
+
+    private final Map<String, CompletableFuture<Patient>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Creates a patient cache.
+     *
+     * @param maxSize The maximum number of patients.  If not positive, nothing is cached.
+     * @param ttl The maximum time (in ms) a patient remains cached.  If not positive, patients do not expire.
+     * @param mrnExtractor Extracts the MRN from a patient resource.
+     */
+    public PatientCache(
+            int maxSize,
+            long ttl,
+            Function<Patient, String> mrnExtractor) {
+        this.byId = new LruCache<>(maxSize);
+        this.idByMrn = new LruCache<>(maxSize);
+        this.ttl = ttl;
+        this.mrnExtractor = mrnExtractor;
+    }
+
+    /**
+     * Returns a patient given its FHIR id, fetching it if not cached.
+     *
+     * @param id The FHIR id.
+     * @param loader Fetches the patient.
+     * @return The patient (possibly null).
+     */
+    public Patient getById(
+            String id,
+            Supplier<Patient> loader) {
+        String key = toKey(id);
+        Patient patient = lookup(key);
+        return patient != null ? patient : load("ID:" + key, null, loader);
+    }
+
+    /**
+     * Returns a patient given its MRN, fetching it if not cached.
+     *
+     * @param mrn The MRN.
+     * @param loader Fetches the patient.
+     * @return The patient (possibly null).
+     */
+    public Patient getByMrn(
+            String mrn,
+            Supplier<Patient> loader) {
+        Patient patient = lookup(idByMrn.get(mrn));
+        return patient != null ? patient : load("MRN:" + mrn, mrn, loader);
+    }
+
+    /**
+     * Returns true if a patient with the given FHIR id is cached.  Does not affect statistics.
+     *
+     * @param id The FHIR id.
+     * @return True if the patient is cached and has not expired.
+     */
+    public boolean containsId(String id) {
+        String key = toKey(id);
+        Entry entry = key == null ? null : byId.get(key);
+        return entry != null && entry.expires >= System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if a patient with the given MRN is cached.  Does not affect statistics.
+     *
+     * @param mrn The MRN.
+     * @return True if the patient is cached and has not expired.
+     */
+    public boolean containsMrn(String mrn) {
+        String id = idByMrn.get(mrn);
+        return id != null && containsId(id);
+    }
+
+    /**
+     * Adds a patient to the cache.
+     *
+     * @param patient The patient.
+     */
+    public void put(Patient patient) {
+        put(patient, null);
+    }
+
+    /**
+     * Adds a patient to the cache.
+     *
+     * @param patient The patient.
+     * @param mrn The MRN by which the patient was located (if null, the MRN is extracted from the patient).
+     */
+    public void put(
+            Patient patient,
+            String mrn) {
+        String id = toKey(patient.getIdElement().getIdPart());
+
+        if (id == null) {
+            return;
+        }
+
+        long expires = ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+        byId.put(id, new Entry(patient.copy(), expires));
+        mrn = mrn == null ? mrnExtractor.apply(patient) : mrn;
+
+        if (mrn != null) {
+            idByMrn.put(mrn, id);
+        }
+    }
+
+    /**
+     * Returns a copy of a cached patient, recording a hit or miss.
+     *
+     * @param id The FHIR id (may be null).
+     * @return A copy of the cached patient, or null if not cached or expired.
+     */
+    private Patient lookup(String id) {
+        Entry entry = id == null ? null : byId.get(id);
+
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            byId.remove(id);
+            expirations.incrementAndGet();
+            entry = null;
+        }
+
+        (entry == null ? misses : hits).incrementAndGet();
+        return entry == null ? null : entry.patient.copy();
+    }
+
+    /**
+     * Fetches a patient and caches it.  If a fetch with the same key is already in progress, waits for its result
+     * instead.
+     *
+     * @param key The key identifying the fetch.
+     * @param mrn The MRN by which the patient is being located (null if located by FHIR id).
+     * @param loader Fetches the patient.
+     * @return The patient (possibly null).
+     */
+    private Patient load(
+            String key,
+            String mrn,
+            Supplier<Patient> loader) {
+        CompletableFuture<Patient> future = new CompletableFuture<>();
+        CompletableFuture<Patient> existing = loading.putIfAbsent(key, future);
+
+        if (existing != null) {
+            try {
+                Patient patient = existing.join();
+                return patient == null ? null : patient.copy();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        try {
+            Patient patient = loader.get();
+
+            if (patient != null) {
+                put(patient, mrn);
+            }
+
+            future.complete(patient);
+            return patient;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * Normalizes a FHIR id (which may be a relative or absolute reference) to its id part.
+     *
+     * @param id The FHIR id.
+     * @return The id part (null if none).
+     */
+    private String toKey(String id) {
+        return id == null ? null : new IdType(id).getIdPart();
+    }
+
+    /**
+     * Removes all patients from the cache.
+     */
+    public void clear() {
+        byId.clear();
+        idByMrn.clear();
+    }
+
+    /**
+     * Returns cache statistics for reporting.
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("size", byId.size());
+        status.put("maxSize", byId.getMaxSize());
+        status.put("hits", hits.get());
+        status.put("misses", misses.get());
+        status.put("evictions", byId.getEvictions());
+        status.put("expirations", expirations.get());
+        return status;
+    }
+
+}
@@ -0,0 +1,64 @@
+package edu.utah.kmm.emerse.patient;
+
+import java.util.Date;
+
+/**
+ * Records the FHIR id to which an MRN was resolved, or that the MRN could not be resolved.  Used to avoid repeated calls
+ * to an external identifier service for the same MRN.
+ */
+public class PatientIdMapping {
+
+    private final String mrn;
+
+    private final String patientId;
+
+    private final Date resolved;
+
+    /**
+     * Creates a mapping.
+     *
+     * @param mrn The MRN.
+     * @param patientId The patient's FHIR id, or null if the MRN was not found.
+     * @param resolved The time at which the MRN was resolved.
+     */
+    public PatientIdMapping(
+            String mrn,
+            String patientId,
+            Date resolved) {
+        this.mrn = mrn;
+        this.patientId = patientId;
+        this.resolved = resolved;
+    }
+
+    /**
+     * Returns true if the MRN was not found.
+     */
+    public boolean isNotFound() {
+        return patientId == null;
+    }
+
+    /**
+     * Returns true if this mapping records an MRN that was not found and was resolved longer ago than the specified
+     * interval.  Mappings to a FHIR id never expire.
+     *
+     * @param negativeTtl The time (in ms) for which an MRN that was not found is not resolved again.  If not positive,
+     *                    such MRNs are never resolved again.
+     * @return True if the mapping has expired.
+     */
+    public boolean isExpired(long negativeTtl) {
+        return isNotFound() && negativeTtl > 0 && resolved.getTime() + negativeTtl < System.currentTimeMillis();
+    }
+
+    public String getMrn() {
+        return mrn;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public Date getResolved() {
+        return resolved;
+    }
+
+}
@@ -1,16 +1,28 @@
 package edu.utah.kmm.emerse.patient;
 
+import edu.utah.kmm.emerse.fhir.BundlePager;
 import edu.utah.kmm.emerse.fhir.FhirService;
 import edu.utah.kmm.emerse.fhir.IdentifierType;
+import edu.utah.kmm.emerse.throttle.EndpointClass;
 import edu.utah.kmm.emerse.util.MiscUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Identifier;
 import org.hl7.fhir.dstu3.model.Patient;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.Assert;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
 /**
  * Service for patient-related operations.
  */
@@ -30,8 +42,24 @@ public class PatientService {
     @Value("${fhir.mrn.system}")
     private String mrnSystem;
 
+    @Value("${fhir.patient.cache.size:10000}")
+    private int cacheSize;
+
+    @Value("${fhir.patient.cache.ttl:600000}")
+    private long cacheTtl;
+
+    @Value("${fhir.patient.batch.size:50}")
+    private int batchSize;
+
     private volatile IPatientLookup patientLookup;
 
+    private PatientCache patientCache;
+
+    @PostConstruct
+    private void init() {
+        patientCache = new PatientCache(cacheSize, cacheTtl, this::extractMRN);
+    }
+
     /**
      * Returns the service to use for patient lookup.
      */
@@ -56,7 +84,7 @@ public class PatientService {
      * @return The associated patient resource.
      */
     public Patient getPatientById(String patid) {
-        return fhirService.readResource(Patient.class, patid);
+        return patientCache.getById(patid, () -> fhirService.readResource(Patient.class, patid));
     }
 
     /**
@@ -80,7 +108,127 @@ public class PatientService {
      * @return The associated patient resource.
      */
     public Patient getPatientByMrn(String mrn) {
-        return getPatientLookup().lookupByMRN(mrn);
+        return patientCache.getByMrn(mrn, () -> getPatientLookup().lookupByMRN(mrn));
+    }
+
+    /**
+     * Returns patient resources given their FHIR ids, retrieving up to the batch size with each search.  The patients
+     * are added to the patient cache.
+     *
+     * @param patids The FHIR ids.
+     * @return Map of FHIR id to patient resource.  Ids that were not found are omitted.
+     */
+    public Map<String, Patient> getPatientsById(Collection<String> patids) {
+        Map<String, Patient> patients = new LinkedHashMap<>();
+
+        List<String> ids = patids.stream().map(patid -> new IdType(patid).getIdPart()).collect(Collectors.toList());
+
+        for (List<String> batch : partition(ids)) {
+            Bundle bundle = fhirService.execute(EndpointClass.FHIR_SEARCH, fhirService.getGenericClient().search()
+                    .forResource(Patient.class)
+                    .where(Patient.RES_ID.exactly().codes(batch))
+                    .count(batch.size())
+                    .returnBundle(Bundle.class));
+
+            new BundlePager<>(fhirService, bundle, Patient.class, Runnable::run).forEachRemaining(patient -> {
+                patientCache.put(patient);
+                patients.put(patient.getIdElement().getIdPart(), patient);
+            });
+        }
+
+        return patients;
+    }
+
+    /**
+     * Retrieves the patients for a group of identifiers that are not already cached, in batches, and adds them to the
+     * patient cache.  Subsequent calls to {@link #getPatient} for these identifiers are then served from the cache.
+     * Failures are logged and otherwise ignored, leaving the identifiers to be retrieved individually.  Nothing is
+     * retrieved if at most one identifier is uncached, since a search for a single patient costs as much as retrieving
+     * it individually.
+     *
+     * @param ids The identifiers.
+     * @param type The type of identifier.  Only MRN and PATID identifiers are prefetched.
+     */
+    public void prefetch(
+            Collection<String> ids,
+            IdentifierType type) {
+        if (batchSize <= 1 || (type != IdentifierType.MRN && type != IdentifierType.PATID)) {
+            return;
+        }
+
+        List<String> uncached = ids.stream()
+                .filter(id -> !(type == IdentifierType.MRN ? patientCache.containsMrn(id) : patientCache.containsId(id)))
+                .distinct()
+                .collect(Collectors.toList());
+
+        if (uncached.size() <= 1) {
+            return;
+        }
+
+        try {
+            if (type == IdentifierType.PATID) {
+                getPatientsById(uncached);
+                return;
+            }
+
+            for (List<String> batch : partition(uncached)) {
+                getPatientLookup().lookupByMRNs(batch).forEach((mrn, patient) -> patientCache.put(patient, mrn));
+            }
+        } catch (Exception e) {
+            log.warn("Error prefetching " + uncached.size() + " patient(s); will retrieve individually", e);
+        }
+    }
+
+    /**
+     * Splits identifiers into batches of at most the batch size.
+     *
+     * @param ids The identifiers.
+     * @return The batches.
+     */
+    private List<List<String>> partition(Collection<String> ids) {
+        List<List<String>> batches = new ArrayList<>();
+        List<String> batch = null;
+        int size = Math.max(1, batchSize);
+
+        for (String id : ids) {
+            if (batch == null || batch.size() >= size) {
+                batches.add(batch = new ArrayList<>(size));
+            }
+
+            batch.add(id);
+        }
+
+        return batches;
+    }
+
+    /**
+     * Returns the maximum number of patients retrieved by a single search.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Adds a patient resource obtained elsewhere to the patient cache.
+     *
+     * @param patient The patient resource.
+     */
+    public void cachePatient(Patient patient) {
+        patientCache.put(patient);
+    }
+
+    /**
+     * Removes all patient resources from the patient cache.
+     */
+    public void clearCache() {
+        patientCache.clear();
+    }
+
+    /**
+     * Returns patient cache statistics for reporting.
+     */
+    public Map<String, Object> getCacheStatus() {
+        return patientCache.getStatus();
     }
 
     /**
@@ -0,0 +1,222 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.throttle.AdaptiveLimiter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Abstract base class for writers that send Solr input documents to their collections.  Each document is tracked
+ * against the index context that was current when it was submitted, and its outcome is reported to that context once
+ * it has been sent.  Update requests are sent under an adaptive concurrency limit.
+ */
+public abstract class BaseSolrWriter implements Closeable {
+
+    private static final Log log = LogFactory.getLog(BaseSolrWriter.class);
+
+    /**
+     * A document awaiting submission, together with its originating context.
+     */
+    protected static class PendingDocument {
+
+        private final SolrInputDocument document;
+
+        private final IndexContext context;
+
+        private final boolean counted;
+
+        private final Runnable onSent;
+
+        private PendingDocument(
+                SolrInputDocument document,
+                IndexContext context,
+                boolean counted,
+                Runnable onSent) {
+            this.document = document;
+            this.context = context;
+            this.counted = counted;
+            this.onSent = onSent;
+        }
+
+        protected SolrInputDocument getDocument() {
+            return document;
+        }
+
+        protected IndexContext getContext() {
+            return context;
+        }
+
+    }
+
+    protected final SolrClient solrClient;
+
+    protected final SolrCommitManager commitManager;
+
+    protected final AdaptiveLimiter limiter;
+
+    protected BaseSolrWriter(
+            SolrClient solrClient,
+            SolrCommitManager commitManager,
+            AdaptiveLimiter limiter) {
+        this.solrClient = solrClient;
+        this.commitManager = commitManager;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Submits a document for indexing.
+     *
+     * @param collection The target collection.
+     * @param document The document to index.
+     * @param counted If true, the document has been counted as a success in the current context's result.
+     */
+    public void add(
+            String collection,
+            SolrInputDocument document,
+            boolean counted) {
+        add(collection, document, counted, null);
+    }
+
+    /**
+     * Submits a document for indexing.
+     *
+     * @param collection The target collection.
+     * @param document The document to index.
+     * @param counted If true, the document has been counted as a success in the current context's result.
+     * @param onSent If not null, invoked once the document has been accepted by Solr.
+     */
+    public void add(
+            String collection,
+            SolrInputDocument document,
+            boolean counted,
+            Runnable onSent) {
+        IndexContext context = IndexContext.current();
+
+        if (context != null) {
+            context.submitted();
+        }
+
+        enqueue(collection, new PendingDocument(document, context, counted, onSent));
+    }
+
+    /**
+     * Queues a document for submission.
+     *
+     * @param collection The target collection.
+     * @param pending The pending document.
+     */
+    protected abstract void enqueue(
+            String collection,
+            PendingDocument pending);
+
+    /**
+     * Ensures that all previously submitted documents have been sent.
+     */
+    public abstract void flush();
+
+    /**
+     * Ensures that all previously submitted documents for a collection have been sent.
+     *
+     * @param collection The collection to flush.
+     */
+    public abstract void flush(String collection);
+
+    /**
+     * Ensures that all documents submitted under an index context have been sent.
+     *
+     * @param context The index context (if null, all documents are flushed).
+     */
+    public void flush(IndexContext context) {
+        flush();
+
+        if (context != null) {
+            context.await();
+        }
+    }
+
+    /**
+     * Sends documents to a collection as a single update request, reporting the outcome to each document's context.
+     *
+     * @param collection The target collection.
+     * @param documents The documents to send (may be null).
+     */
+    protected void send(
+            String collection,
+            List<PendingDocument> documents) {
+        if (documents == null || documents.isEmpty()) {
+            return;
+        }
+
+        boolean success = false;
+
+        try {
+            UpdateRequest request = new UpdateRequest();
+            request.add(documents.stream().map(PendingDocument::getDocument).collect(Collectors.toList()));
+            commitManager.prepare(request);
+            limiter.call(() -> solrClient.request(request, collection), BaseSolrWriter::isOverload);
+            commitManager.updated(collection);
+            success = true;
+        } catch (Exception e) {
+            log.error("Error sending " + documents.size() + " document(s) to collection " + collection, e);
+        }
+
+        for (PendingDocument pending : documents) {
+            if (success && pending.onSent != null) {
+                try {
+                    pending.onSent.run();
+                } catch (Exception e) {
+                    log.error("Error in completion callback for document sent to collection " + collection, e);
+                }
+            }
+
+            if (pending.context != null) {
+                pending.context.completed(pending.counted, success);
+            }
+        }
+    }
+
+    /**
+     * Returns true if an exception thrown by an update request indicates that Solr is overloaded (a communication
+     * failure, a server error, or a throttled request), rather than a problem with the documents themselves.
+     *
+     * @param e The exception.
+     * @return True if Solr is overloaded.
+     */
+    private static boolean isOverload(Exception e) {
+        if (!(e instanceof SolrException)) {
+            return true;
+        }
+
+        int code = ((SolrException) e).code();
+        return code == 429 || code >= 500;
+    }
+
+    /**
+     * Returns a rough estimate of the serialized size of a document.
+     *
+     * @param document The document.
+     * @return The estimated size in bytes.
+     */
+    protected long estimateSize(SolrInputDocument document) {
+        long size = 0;
+
+        for (SolrInputField field : document) {
+            size += field.getName().length();
+
+            for (Object value : field) {
+                size += value instanceof CharSequence ? ((CharSequence) value).length() : 16;
+            }
+        }
+
+        return size;
+    }
+
+}
@@ -0,0 +1,246 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.throttle.AdaptiveLimiter;
+import org.apache.solr.client.solrj.SolrClient;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers Solr input documents by collection and sends them as a single update request once a document count,
+ * payload size, or age threshold has been reached.  Batches are sent on the thread that fills them.
+ */
+public class BatchSolrWriter extends BaseSolrWriter {
+
+    /**
+     * Documents awaiting submission to a single collection.
+     */
+    private static class Batch {
+
+        private final List<PendingDocument> documents = new ArrayList<>();
+
+        private long size;
+
+        private long created;
+
+    }
+
+    private final int maxDocuments;
+
+    private final long maxBytes;
+
+    private final long maxAge;
+
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a batching writer.
+     *
+     * @param solrClient The Solr client used to send updates.
+     * @param commitManager The commit manager to be notified of updates.
+     * @param limiter The concurrency limiter for update requests.
+     * @param maxDocuments Maximum number of documents in a batch.
+     * @param maxBytes Maximum estimated payload size (in bytes) of a batch.
+     * @param maxAge Maximum time (in ms) a document may remain buffered.  If not positive, batches are only sent when
+     *               a size threshold is reached or upon an explicit flush.
+     */
+    public BatchSolrWriter(
+            SolrClient solrClient,
+            SolrCommitManager commitManager,
+            AdaptiveLimiter limiter,
+            int maxDocuments,
+            long maxBytes,
+            long maxAge) {
+        super(solrClient, commitManager, limiter);
+        this.maxDocuments = Math.max(1, maxDocuments);
+        this.maxBytes = maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+        this.maxAge = maxAge;
+
+        if (maxAge > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "EMERSE-IT solr batch writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            scheduler.scheduleWithFixedDelay(this::flushExpired, maxAge, maxAge, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Adds a document to the batch for a collection, sending the batch if a size threshold has been reached.
+     *
+     * @param collection The target collection.
+     * @param pending The document to add.
+     */
+    @Override
+    protected void enqueue(
+            String collection,
+            PendingDocument pending) {
+        List<PendingDocument> ready = null;
+
+        synchronized (batches) {
+            Batch batch = batches.computeIfAbsent(collection, key -> new Batch());
+
+            if (batch.documents.isEmpty()) {
+                batch.created = System.currentTimeMillis();
+            }
+
+            batch.documents.add(pending);
+            batch.size += estimateSize(pending.getDocument());
+
+            if (batch.documents.size() >= maxDocuments || batch.size >= maxBytes) {
+                ready = drain(collection);
+            }
+        }
+
+        send(collection, ready);
+    }
+
+    /**
+     * Sends any buffered documents for the specified collection.
+     *
+     * @param collection The collection to flush.
+     */
+    @Override
+    public void flush(String collection) {
+        List<PendingDocument> ready;
+
+        synchronized (batches) {
+            ready = drain(collection);
+        }
+
+        send(collection, ready);
+    }
+
+    /**
+     * Sends all buffered documents.
+     */
+    @Override
+    public void flush() {
+        Map<String, List<PendingDocument>> ready = new HashMap<>();
+
+        synchronized (batches) {
+            for (String collection : batches.keySet()) {
+                ready.put(collection, drain(collection));
+            }
+        }
+
+        ready.forEach(this::send);
+    }
+
+    /**
+     * Sends the buffered documents that were submitted under an index context, then waits until every document
+     * submitted under it has been sent, including any in batches that other threads are already sending.  Documents
+     * buffered for other contexts remain in their batches.
+     *
+     * @param context The index context (if null, all documents are flushed).
+     */
+    @Override
+    public void flush(IndexContext context) {
+        if (context == null) {
+            flush();
+            return;
+        }
+
+        Map<String, List<PendingDocument>> ready = new HashMap<>();
+
+        synchronized (batches) {
+            for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+                List<PendingDocument> documents = drain(entry.getValue(), context);
+
+                if (!documents.isEmpty()) {
+                    ready.put(entry.getKey(), documents);
+                }
+            }
+        }
+
+        ready.forEach(this::send);
+        context.await();
+    }
+
+    /**
+     * Sends batches whose oldest document has exceeded the maximum age.
+     */
+    private void flushExpired() {
+        Map<String, List<PendingDocument>> ready = new HashMap<>();
+        long expiration = System.currentTimeMillis() - maxAge;
+
+        synchronized (batches) {
+            for (Map.Entry<String, Batch> entry : batches.entrySet()) {
+                Batch batch = entry.getValue();
+
+                if (!batch.documents.isEmpty() && batch.created <= expiration) {
+                    ready.put(entry.getKey(), drain(entry.getKey()));
+                }
+            }
+        }
+
+        ready.forEach(this::send);
+    }
+
+    /**
+     * Removes and returns the buffered documents for a collection.  Must be called while holding the batch lock.
+     *
+     * @param collection The collection.
+     * @return The buffered documents (null if none).
+     */
+    private List<PendingDocument> drain(String collection) {
+        Batch batch = batches.get(collection);
+
+        if (batch == null || batch.documents.isEmpty()) {
+            return null;
+        }
+
+        List<PendingDocument> documents = new ArrayList<>(batch.documents);
+        batch.documents.clear();
+        batch.size = 0;
+        return documents;
+    }
+
+    /**
+     * Removes and returns the documents in a batch that were submitted under an index context.  Must be called while
+     * holding the batch lock.
+     *
+     * @param batch The batch.
+     * @param context The index context.
+     * @return The documents submitted under the context (never null).
+     */
+    private List<PendingDocument> drain(
+            Batch batch,
+            IndexContext context) {
+        List<PendingDocument> documents = new ArrayList<>();
+        Iterator<PendingDocument> iterator = batch.documents.iterator();
+
+        while (iterator.hasNext()) {
+            PendingDocument pending = iterator.next();
+
+            if (pending.getContext() == context) {
+                iterator.remove();
+                batch.size = Math.max(0, batch.size - estimateSize(pending.getDocument()));
+                documents.add(pending);
+            }
+        }
+
+        return documents;
+    }
+
+    /**
+     * Sends all buffered documents and stops the background flush.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        flush();
+    }
+
+}
@@ -0,0 +1,171 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.database.DatabaseService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides when the progress of a running index request should be persisted, and persists it on a background thread.
+ * A checkpoint is due once a number of identifiers have been processed or an interval has elapsed since the last one,
+ * whichever comes first.  Checkpoints for the same request that are submitted before the previous one has been written
+ * are coalesced, so only the latest state is written.
+ */
+public class CheckpointScheduler implements Closeable {
+
+    private static final Log log = LogFactory.getLog(CheckpointScheduler.class);
+
+    /**
+     * Tracks progress towards the next checkpoint for a single request.  May be shared by several daemons.
+     */
+    public class Tracker {
+
+        private int count;
+
+        private long last = System.currentTimeMillis();
+
+        private Tracker() {
+        }
+
+        /**
+         * Records that an identifier has been processed.
+         *
+         * @return True if a checkpoint is due.
+         */
+        public boolean processed() {
+            return processed(1);
+        }
+
+        /**
+         * Records that a number of identifiers have been processed.
+         *
+         * @param identifiers The number of identifiers.
+         * @return True if a checkpoint is due.
+         */
+        public synchronized boolean processed(int identifiers) {
+            long now = System.currentTimeMillis();
+
+            if ((count += identifiers) >= maxCount || now - last >= interval) {
+                count = 0;
+                last = now;
+                return true;
+            }
+
+            return false;
+        }
+
+    }
+
+    private final DatabaseService databaseService;
+
+    private final long interval;
+
+    private final int maxCount;
+
+    private final Set<IndexRequestDTO> pending = new LinkedHashSet<>();
+
+    private final Thread writer;
+
+    private boolean closed;
+
+    /**
+     * Creates a checkpoint scheduler.
+     *
+     * @param databaseService The database service.
+     * @param interval Maximum time (in ms) between checkpoints.  If not positive, checkpoints are not time-based.
+     * @param maxCount Maximum number of identifiers processed between checkpoints.  If not positive, checkpoints are
+     *                 not count-based.
+     */
+    public CheckpointScheduler(
+            DatabaseService databaseService,
+            long interval,
+            int maxCount) {
+        this.databaseService = databaseService;
+        this.interval = interval <= 0 ? Long.MAX_VALUE : interval;
+        this.maxCount = maxCount <= 0 ? Integer.MAX_VALUE : maxCount;
+        this.writer = new Thread(this::write, "EMERSE-IT checkpoint writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Returns a tracker for a request's progress.
+     *
+     * @return A new tracker.
+     */
+    public Tracker track() {
+        return new Tracker();
+    }
+
+    /**
+     * Schedules a request's current state to be written.  The caller is responsible for ensuring that all work covered
+     * by the request's processed count has been sent to Solr beforehand.
+     *
+     * @param request The request.
+     */
+    public void submit(IndexRequestDTO request) {
+        synchronized (pending) {
+            if (pending.add(request)) {
+                pending.notify();
+            }
+        }
+    }
+
+    /**
+     * Writer thread loop.
+     */
+    private void write() {
+        while (true) {
+            List<IndexRequestDTO> requests;
+
+            synchronized (pending) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                requests = new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            for (IndexRequestDTO request : requests) {
+                try {
+                    request.updateElapsed();
+                    databaseService.updateIndexRequest(request);
+                } catch (Exception e) {
+                    log.error("Error writing checkpoint for index request " + request.getId(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes any pending checkpoints and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        synchronized (pending) {
+            closed = true;
+            pending.notify();
+        }
+
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.solr.IndexRequestDTO.IndexRequestStatus;
+import edu.utah.kmm.emerse.util.MiscUtil;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * An index request whose unprocessed identifiers have been split into chunks so that several daemons can work on it
+ * at once.  Daemons claim chunks in order until none remain.  The request's processed count is maintained as a low
+ * watermark: it only covers identifiers for which all preceding identifiers have also been processed, so a
+ * suspended request resumes without skipping any identifier (though some may be processed twice).  Only chunks at or
+ * above the low watermark are retained, so chunks may be as small as a single identifier.
+ * <p>
+ * Identifiers are read under a separate lock from the one guarding progress, so that reading them (which may include
+ * prefetching the patients for a batch of identifiers) does not delay daemons recording processed chunks.
+ */
+public class ChunkedIndexRequest {
+
+    /**
+     * A contiguous range of identifiers claimed by a single daemon.
+     */
+    public static class Chunk {
+
+        private final int start;
+
+        private final List<String> identifiers;
+
+        private int position;
+
+        private Chunk(
+                int start,
+                List<String> identifiers) {
+            this.start = start;
+            this.identifiers = identifiers;
+        }
+
+        /**
+         * Returns the identifiers in this chunk.
+         */
+        public List<String> getIdentifiers() {
+            return identifiers;
+        }
+
+        private boolean isDone() {
+            return position >= identifiers.size();
+        }
+
+    }
+
+    private final IndexRequestDTO request;
+
+    private final IndexResult result;
+
+    private final Iterator<String> identifiers;
+
+    private final int remaining;
+
+    private final int base;
+
+    private final Deque<Chunk> chunks = new ArrayDeque<>();
+
+    private final Object reader = new Object();
+
+    private final int chunkSize;
+
+    private int cursor;
+
+    private int participants;
+
+    private boolean closed;
+
+    private final CheckpointScheduler.Tracker tracker;
+
+    /**
+     * Splits a running request into chunks.
+     *
+     * @param request The running request.
+     * @param result The result shared by all participating daemons.
+     * @param chunkSize The number of identifiers per chunk.
+     * @param tracker Tracks progress towards the next checkpoint.
+     * @param wrapper Wraps the iterator over the request's unprocessed identifiers (e.g., to prefetch patients in
+     *                batches as identifiers are claimed).
+     */
+    ChunkedIndexRequest(
+            IndexRequestDTO request,
+            IndexResult result,
+            int chunkSize,
+            CheckpointScheduler.Tracker tracker,
+            UnaryOperator<Iterator<String>> wrapper) {
+        this.request = request;
+        this.tracker = tracker;
+        this.result = result;
+        this.base = request.getProcessed();
+        this.remaining = request.getTotal() - base;
+        this.identifiers = wrapper.apply(request.iterateIdentifiers(true));
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    public IndexRequestDTO getRequest() {
+        return request;
+    }
+
+    public IndexResult getResult() {
+        return result;
+    }
+
+    /**
+     * Claims the next unprocessed chunk.
+     *
+     * @return The claimed chunk, or null if no chunks remain or the request is no longer running.
+     */
+    public Chunk claim() {
+        synchronized (reader) {
+            if (!hasUnclaimed()) {
+                return null;
+            }
+
+            List<String> claimed = new ArrayList<>(chunkSize);
+
+            while (claimed.size() < chunkSize && identifiers.hasNext()) {
+                claimed.add(identifiers.next());
+            }
+
+            synchronized (this) {
+                if (claimed.isEmpty()) {
+                    cursor = remaining;
+                    return null;
+                }
+
+                Chunk chunk = new Chunk(cursor, claimed);
+                cursor += claimed.size();
+                chunks.add(chunk);
+                return chunk;
+            }
+        }
+    }
+
+    /**
+     * Returns true if there are chunks that have not been claimed and the request is still running.
+     */
+    public synchronized boolean hasUnclaimed() {
+        return !closed && cursor < remaining && request.getStatus() == IndexRequestStatus.RUNNING;
+    }
+
+    /**
+     * Records that all identifiers in a chunk have been processed, advancing the request's processed count if the low
+     * watermark has moved.  The caller must ensure that the documents for the chunk have been sent to Solr beforehand,
+     * since a request resumed from a checkpoint skips every identifier covered by the processed count.
+     *
+     * @param chunk The chunk.
+     * @return True if a checkpoint is due.
+     */
+    public synchronized boolean processed(Chunk chunk) {
+        int count = chunk.identifiers.size() - chunk.position;
+        chunk.position = chunk.identifiers.size();
+
+        while (!chunks.isEmpty() && chunks.peekFirst().isDone()) {
+            chunks.removeFirst();
+        }
+
+        Chunk first = chunks.peekFirst();
+        request.setProcessed(base + (first == null ? cursor : first.start + first.position));
+        return tracker.processed(count);
+    }
+
+    /**
+     * Registers a daemon as a participant.
+     *
+     * @return False if the request is no longer accepting participants.
+     */
+    public synchronized boolean join() {
+        if (closed) {
+            return false;
+        }
+
+        participants++;
+        return true;
+    }
+
+    /**
+     * Deregisters a participant.
+     */
+    public synchronized void leave() {
+        if (--participants <= 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops accepting participants and waits for existing participants to leave.
+     */
+    public synchronized void close() {
+        closed = true;
+
+        try {
+            while (participants > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            MiscUtil.rethrow(e);
+        }
+    }
+
+}
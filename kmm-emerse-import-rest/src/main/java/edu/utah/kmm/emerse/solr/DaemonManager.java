@@ -13,7 +13,8 @@ import java.util.Iterator;
 import java.util.List;
 
 /**
- * Manages indexing daemons.
+ * Manages indexing daemons.  In addition to the general daemons, a number of daemons may be dedicated to interactive
+ * requests.
  */
 public class DaemonManager {
 
@@ -31,6 +32,9 @@ public class DaemonManager {
     @Value("${solr.server.daemons:1}")
     private int maxDaemons;
 
+    @Value("${solr.server.daemons.interactive:0}")
+    private int interactiveDaemons;
+
     private final List<IndexDaemon> daemons = new ArrayList<>();
 
     @PostConstruct
@@ -39,9 +43,9 @@ public class DaemonManager {
 
         int count = 0;
 
-        for (int i = daemons.size(); i < maxDaemons; i++) {
+        for (int i = daemons.size(); i < maxDaemons + interactiveDaemons; i++) {
             count++;
-            IndexDaemon daemon = new IndexDaemon(i + 1, solrQueue, solrService);
+            IndexDaemon daemon = new IndexDaemon(i + 1, i >= maxDaemons, solrQueue, solrService);
             daemons.add(daemon);
             daemonThreadPool.execute(daemon);
         }
@@ -13,10 +13,14 @@ public class DaemonThreadPool extends ThreadPoolTaskExecutor {
     @Value("${solr.server.daemons:1}")
     private int maxDaemons;
 
+    @Value("${solr.server.daemons.interactive:0}")
+    private int interactiveDaemons;
+
     @PostConstruct
     private void init() {
-        setCorePoolSize(maxDaemons);
-        setMaxPoolSize(maxDaemons * 2);
+        int daemons = maxDaemons + Math.max(0, interactiveDaemons);
+        setCorePoolSize(daemons);
+        setMaxPoolSize(daemons * 2);
         setKeepAliveSeconds(60);
     }
 
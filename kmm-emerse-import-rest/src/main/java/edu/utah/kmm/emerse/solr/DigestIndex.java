@@ -0,0 +1,304 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A persistent, memory-mapped hash table mapping document ids to content digests.  Both are reduced to 64-bit values,
+ * so each entry occupies 16 bytes regardless of the length of the id.  Collisions are resolved by linear probing.  The
+ * table is sized for a fixed number of entries when it is created and is never resized, so no update has to wait for
+ * the table to be rehashed; once it is full, further entries are rejected.  The table is backed by a file that is
+ * mapped in segments of at most 1 GB, so it can hold far more entries than fit in the heap.
+ */
+public class DigestIndex implements Closeable {
+
+    private static final Log log = LogFactory.getLog(DigestIndex.class);
+
+    private static final long MAGIC = 0x454D45525345444CL;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 16;
+
+    private static final int MAX_SEGMENT_BITS = 26;
+
+    private static final double MAX_LOAD = 0.7;
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private MappedByteBuffer header;
+
+    private MappedByteBuffer[] segments;
+
+    private int segmentShift;
+
+    private long segmentMask;
+
+    private long capacity;
+
+    private long limit;
+
+    private long size;
+
+    /**
+     * Opens the index stored in the specified file, creating it if it does not exist or is not valid.  An existing
+     * index that is too small for the requested capacity is discarded and recreated empty.
+     *
+     * @param file The backing file.
+     * @param maxEntries The number of entries the index must be able to hold.
+     * @throws IOException On an I/O error.
+     */
+    public DigestIndex(
+            File file,
+            long maxEntries) throws IOException {
+        this.file = file;
+        long slots = slotsFor(maxEntries);
+        long existing = getSlots(file);
+
+        if (existing < slots) {
+            if (existing > 0) {
+                log.warn("Recreating digest index " + file + " to hold " + maxEntries + " entries");
+            }
+
+            create(file, slots);
+        }
+
+        map();
+        log.info("Opened digest index " + file + " with " + size + " of " + limit + " entries");
+    }
+
+    /**
+     * Returns true if a document's recorded digest matches the specified digest.
+     *
+     * @param id The document id.
+     * @param digest The hex-encoded content digest.
+     * @return True if the digest matches.
+     */
+    public synchronized boolean matches(
+            String id,
+            String digest) {
+        long slot = find(hash(id));
+        return getKey(slot) != 0 && getValue(slot) == fold(digest);
+    }
+
+    /**
+     * Records the digest for a document.
+     *
+     * @param id The document id.
+     * @param digest The hex-encoded content digest.
+     * @throws IllegalStateException If the document is not already in the index and the index is full.
+     */
+    public synchronized void put(
+            String id,
+            String digest) {
+        long key = hash(id);
+        long slot = find(key);
+
+        if (getKey(slot) == 0) {
+            if (size >= limit) {
+                throw new IllegalStateException("Digest index " + file + " is full (" + size + " entries)");
+            }
+
+            setKey(slot, key);
+            header.putLong(16, ++size);
+        }
+
+        setValue(slot, fold(digest));
+    }
+
+    /**
+     * Returns the number of entries in the index.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Returns the maximum number of entries the index can hold.
+     */
+    public synchronized long limit() {
+        return limit;
+    }
+
+    /**
+     * Removes all entries from the index.
+     */
+    public synchronized void clear() {
+        for (MappedByteBuffer segment : segments) {
+            for (int i = 0; i < segment.capacity(); i += 8) {
+                segment.putLong(i, 0);
+            }
+        }
+
+        header.putLong(16, size = 0);
+    }
+
+    /**
+     * Writes any changes to the backing file and releases it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            force();
+            raf.close();
+            raf = null;
+        }
+    }
+
+    /**
+     * Returns the slot containing the specified key, or the empty slot where it would be inserted.
+     *
+     * @param key The key.
+     * @return The slot index.
+     */
+    private long find(long key) {
+        long mask = capacity - 1;
+        long slot = key & mask;
+
+        while (true) {
+            long current = getKey(slot);
+
+            if (current == 0 || current == key) {
+                return slot;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Maps the backing file into memory.
+     *
+     * @throws IOException On an I/O error.
+     */
+    private void map() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        capacity = header.getLong(8);
+        limit = (long) (capacity * MAX_LOAD);
+        size = header.getLong(16);
+        long segmentSlots = Math.min(capacity, 1L << MAX_SEGMENT_BITS);
+        segmentShift = Long.numberOfTrailingZeros(segmentSlots);
+        segmentMask = segmentSlots - 1;
+        segments = new MappedByteBuffer[(int) (capacity / segmentSlots)];
+
+        for (int i = 0; i < segments.length; i++) {
+            long position = HEADER_SIZE + i * segmentSlots * SLOT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentSlots * SLOT_SIZE);
+        }
+    }
+
+    private void force() {
+        header.force();
+
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    private long getKey(long slot) {
+        return segments[(int) (slot >>> segmentShift)].getLong((int) (slot & segmentMask) * SLOT_SIZE);
+    }
+
+    private void setKey(
+            long slot,
+            long key) {
+        segments[(int) (slot >>> segmentShift)].putLong((int) (slot & segmentMask) * SLOT_SIZE, key);
+    }
+
+    private long getValue(long slot) {
+        return segments[(int) (slot >>> segmentShift)].getLong((int) (slot & segmentMask) * SLOT_SIZE + 8);
+    }
+
+    private void setValue(
+            long slot,
+            long value) {
+        segments[(int) (slot >>> segmentShift)].putLong((int) (slot & segmentMask) * SLOT_SIZE + 8, value);
+    }
+
+    /**
+     * Returns the number of slots in the index stored in a file.
+     *
+     * @param file The file.
+     * @return The number of slots, or zero if the file does not contain a valid index.
+     * @throws IOException On an I/O error.
+     */
+    private static long getSlots(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return 0;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long magic = raf.readLong();
+            long capacity = raf.readLong();
+            boolean valid = magic == MAGIC
+                    && capacity > 0
+                    && Long.bitCount(capacity) == 1
+                    && file.length() == HEADER_SIZE + capacity * SLOT_SIZE;
+            return valid ? capacity : 0;
+        }
+    }
+
+    /**
+     * Returns the number of slots needed to hold the specified number of entries within the maximum load factor.
+     *
+     * @param maxEntries The number of entries.
+     * @return The number of slots (a power of 2).
+     */
+    private static long slotsFor(long maxEntries) {
+        long slots = Math.max((long) Math.ceil(maxEntries / MAX_LOAD), 16);
+        return Long.highestOneBit(slots * 2 - 1);
+    }
+
+    /**
+     * Creates an empty index file.
+     *
+     * @param file The file.
+     * @param capacity The number of slots (a power of 2).
+     * @throws IOException On an I/O error.
+     */
+    private static void create(
+            File file,
+            long capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + capacity * SLOT_SIZE);
+            raf.writeLong(MAGIC);
+            raf.writeLong(capacity);
+            raf.writeLong(0);
+        }
+    }
+
+    /**
+     * Reduces a document id to a 64-bit key.  Zero is reserved for empty slots.
+     *
+     * @param id The document id.
+     * @return The key.
+     */
+    private static long hash(String id) {
+        long h = MiscUtil.hash64(id);
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Reduces a hex-encoded digest to its leading 64 bits.
+     *
+     * @param digest The hex-encoded digest.
+     * @return The 64-bit value.
+     */
+    private static long fold(String digest) {
+        return Long.parseUnsignedLong(digest.length() > 16 ? digest.substring(0, 16) : digest, 16);
+    }
+
+}
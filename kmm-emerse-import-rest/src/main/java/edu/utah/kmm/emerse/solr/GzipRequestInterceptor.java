@@ -0,0 +1,53 @@
+package edu.utah.kmm.emerse.solr;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Compresses request bodies that meet or exceed a size threshold.  Because update requests are batched per collection,
+ * this compresses requests carrying note text while leaving small patient updates uncompressed.  The Solr server must
+ * be configured to accept gzip-encoded request bodies.
+ */
+public class GzipRequestInterceptor implements HttpRequestInterceptor {
+
+    private volatile long threshold = -1;
+
+    /**
+     * Sets the minimum body size (in bytes) to be compressed.
+     *
+     * @param threshold The threshold.  A negative value disables compression.  Bodies of unknown length are always
+     *                  compressed when compression is enabled.
+     */
+    public void setThreshold(long threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void process(
+            HttpRequest request,
+            HttpContext context) {
+        long threshold = this.threshold;
+
+        if (threshold < 0 || !(request instanceof HttpEntityEnclosingRequest)) {
+            return;
+        }
+
+        HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) request;
+        HttpEntity entity = entityRequest.getEntity();
+
+        if (entity == null || entity.getContentEncoding() != null) {
+            return;
+        }
+
+        long length = entity.getContentLength();
+
+        if (length < 0 || length >= threshold) {
+            entityRequest.setEntity(new GzipCompressingEntity(entity));
+        }
+    }
+
+}
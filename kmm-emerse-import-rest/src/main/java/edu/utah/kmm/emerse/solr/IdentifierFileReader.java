@@ -0,0 +1,135 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.fhir.IdentifierType;
+import edu.utah.kmm.emerse.util.LongHashSet;
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.core.io.Resource;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import static edu.utah.kmm.emerse.util.MiscUtil.toIdentifierType;
+
+/**
+ * Reads a batch file one line at a time.  The first line specifies the identifier type, and each subsequent non-blank
+ * line an identifier.  Gzip-compressed files are detected and decompressed automatically.  Duplicate identifiers may
+ * optionally be dropped; only a 64-bit hash of each identifier is retained for this purpose, and only up to a limit on
+ * the number of distinct identifiers, beyond which duplicates are no longer detected.
+ */
+public class IdentifierFileReader implements Iterator<String>, Closeable {
+
+    private static final Log log = LogFactory.getLog(IdentifierFileReader.class);
+
+    private final BufferedReader reader;
+
+    private final IdentifierType identifierType;
+
+    private final int dedupeLimit;
+
+    private LongHashSet seen;
+
+    private String next;
+
+    private int count;
+
+    private int duplicates;
+
+    /**
+     * Opens a batch file.
+     *
+     * @param resource The batch file.
+     * @param dedupeLimit If positive, duplicate identifiers are skipped until this many distinct identifiers have
+     *                    been read.
+     * @throws IOException On an I/O error.
+     */
+    public IdentifierFileReader(
+            Resource resource,
+            int dedupeLimit) throws IOException {
+        InputStream in = new BufferedInputStream(resource.getInputStream());
+        in.mark(2);
+        boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        reader = new BufferedReader(new InputStreamReader(gzip ? new GZIPInputStream(in) : in, StandardCharsets.UTF_8));
+        String header = reader.readLine();
+        identifierType = toIdentifierType(header == null ? "" : header.trim());
+        this.dedupeLimit = dedupeLimit;
+        seen = dedupeLimit > 0 ? new LongHashSet() : null;
+    }
+
+    public IdentifierType getIdentifierType() {
+        return identifierType;
+    }
+
+    /**
+     * Returns the number of identifiers returned so far.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of duplicate identifiers skipped so far.
+     */
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                String line = reader.readLine();
+
+                if (line == null) {
+                    return false;
+                }
+
+                line = line.trim();
+
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                if (seen != null && !seen.add(MiscUtil.hash64(line))) {
+                    duplicates++;
+                    continue;
+                }
+
+                if (seen != null && seen.size() >= dedupeLimit) {
+                    log.warn("Batch file has reached " + dedupeLimit + " distinct identifiers; duplicates beyond"
+                            + " this point will not be skipped.");
+                    seen = null;
+                }
+
+                next = line;
+            }
+
+            return true;
+        } catch (IOException e) {
+            return MiscUtil.rethrow(e);
+        }
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        String result = next;
+        next = null;
+        count++;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
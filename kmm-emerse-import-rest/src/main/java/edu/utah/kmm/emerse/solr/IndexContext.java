@@ -0,0 +1,149 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.util.MiscUtil;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+
+/**
+ * Associates the documents submitted by a thread with the index request (and result) that produced them.  Solr writers
+ * report the outcome of each submitted document back to its context, so that documents that fail after being handed
+ * off are reflected in the originating request's result.
+ */
+public class IndexContext implements Closeable {
+
+    private static final ThreadLocal<IndexContext> current = new ThreadLocal<>();
+
+    private final IndexRequestDTO request;
+
+    private final IndexResult result;
+
+    private final IndexContext previous;
+
+    private int pending;
+
+    /**
+     * Creates a context and makes it current for the calling thread.
+     *
+     * @param request The originating index request (may be null).
+     * @param result The result to which outcomes are reported.
+     * @return The new context.
+     */
+    public static IndexContext begin(
+            IndexRequestDTO request,
+            IndexResult result) {
+        return new IndexContext(request, result, current.get());
+    }
+
+    /**
+     * Returns the context for the calling thread.
+     *
+     * @return The current context (possibly null).
+     */
+    public static IndexContext current() {
+        return current.get();
+    }
+
+    private IndexContext(
+            IndexRequestDTO request,
+            IndexResult result,
+            IndexContext previous) {
+        this.request = request;
+        this.result = result;
+        this.previous = previous;
+        current.set(this);
+    }
+
+    /**
+     * Returns the originating index request (possibly null).
+     */
+    public IndexRequestDTO getRequest() {
+        return request;
+    }
+
+    /**
+     * Returns the result to which outcomes are reported.
+     */
+    public IndexResult getResult() {
+        return result;
+    }
+
+    /**
+     * Records that a document has been submitted for indexing.
+     */
+    synchronized void submitted() {
+        pending++;
+    }
+
+    /**
+     * Records the outcome of a submitted document.
+     *
+     * @param counted If true, the document was counted as a success in the result.
+     * @param success True if the document was indexed successfully.
+     */
+    synchronized void completed(
+            boolean counted,
+            boolean success) {
+        if (counted && !success) {
+            result.revokeSuccess();
+        }
+
+        if (--pending <= 0) {
+            pending = 0;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the outcome of every submitted document is known.
+     */
+    public synchronized void await() {
+        try {
+            while (pending > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            MiscUtil.rethrow(e);
+        }
+    }
+
+    /**
+     * Wraps a task so that it executes with the calling thread's current context (if any).
+     *
+     * @param task The task to wrap.
+     * @param <T> The task's return type.
+     * @return The wrapped task.
+     */
+    public static <T> Callable<T> propagate(Callable<T> task) {
+        IndexContext context = current.get();
+
+        return context == null ? task : () -> {
+            IndexContext previous = current.get();
+            current.set(context);
+
+            try {
+                return task.call();
+            } finally {
+                if (previous == null) {
+                    current.remove();
+                } else {
+                    current.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Restores the calling thread's previous context.
+     */
+    @Override
+    public void close() {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+}
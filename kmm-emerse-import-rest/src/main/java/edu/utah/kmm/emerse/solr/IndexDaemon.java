@@ -5,7 +5,9 @@ import org.apache.commons.logging.LogFactory;
 
 /**
  * Represents a worker thread for handling index requests.  Simply pulls entries from the index request queue and
- * submits them for indexing.
+ * submits them for indexing, assisting with shared requests in preference to starting new ones.  An interactive daemon
+ * handles only interactive requests, so that they can be started promptly while all other daemons are busy with bulk
+ * requests.
  */
 public class IndexDaemon implements Runnable {
 
@@ -17,35 +19,47 @@ public class IndexDaemon implements Runnable {
 
     private final int daemonId;
 
-    private boolean terminated;
+    private final boolean interactiveOnly;
 
-    IndexDaemon(int daemonId, IndexRequestQueue indexRequestQueue, SolrService solrService) {
+    private static final long IDLE_WAIT = 30000;
+
+    private volatile boolean terminated;
+
+    IndexDaemon(int daemonId, boolean interactiveOnly, IndexRequestQueue indexRequestQueue, SolrService solrService) {
         this.daemonId = daemonId;
+        this.interactiveOnly = interactiveOnly;
         this.indexRequestQueue = indexRequestQueue;
         this.solrService = solrService;
     }
 
     public void terminate() {
         this.terminated = true;
+        indexRequestQueue.wakeAll();
     }
 
     @Override
     public void run() {
         Thread thread = Thread.currentThread();
-        String threadName = "EMERSE-IT indexing daemon #" + daemonId;
+        String threadName = "EMERSE-IT indexing daemon #" + daemonId + (interactiveOnly ? " (interactive)" : "");
         thread.setName(threadName);
         log.info("Started " + threadName);
 
         while (!terminated && !thread.isInterrupted()) {
-            IndexRequestWrapper wrapper = indexRequestQueue.nextRequest();
+            ChunkedIndexRequest shared = indexRequestQueue.nextShared(interactiveOnly);
 
-            if (wrapper == null) {
+            if (shared != null) {
                 try {
-                    Thread.sleep(5000);
-                } catch (InterruptedException e) {
-                    terminated = true;
+                    solrService.assistRequest(shared);
+                } catch (Exception e) {
+                    log.error(e);
                 }
-            } else {
+
+                continue;
+            }
+
+            IndexRequestWrapper wrapper = indexRequestQueue.nextRequest(IDLE_WAIT, interactiveOnly);
+
+            if (wrapper != null) {
                 try {
                     solrService.processRequest(wrapper.get());
                 } catch (Exception e) {
@@ -3,13 +3,10 @@ package edu.utah.kmm.emerse.solr;
 import edu.utah.kmm.emerse.database.BaseDTO;
 import edu.utah.kmm.emerse.fhir.IdentifierType;
 import edu.utah.kmm.emerse.util.MiscUtil;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.core.io.Resource;
 import org.springframework.util.Assert;
 
 import java.io.Closeable;
-import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
@@ -17,7 +14,8 @@ import java.util.*;
 import static edu.utah.kmm.emerse.util.MiscUtil.toIdentifierType;
 
 /**
- * DTO representing an index request.
+ * DTO representing an index request.  A running request may be shared by several daemons, so access to its fields
+ * is synchronized.
  */
 public class IndexRequestDTO extends BaseDTO implements Closeable {
 
@@ -25,6 +23,13 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
         void onClose(IndexRequestDTO request);
     }
 
+    /**
+     * Provides sequential access to the identifiers of a request.
+     */
+    public interface IIdentifierSource {
+        Iterator<String> iterator(int fromIndex);
+    }
+
     /**
      * Note: do not change the member order!
      */
@@ -38,13 +43,22 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
         DELETED
     }
 
+    /**
+     * Scheduling class of a request.  Interactive requests are started ahead of bulk requests, and bulk requests yield
+     * capacity while interactive work is in progress.  Note: do not change the member order!
+     */
+    public enum IndexPriority {
+        INTERACTIVE,
+        BULK
+    }
+
     private enum FieldType {
         COMPLETED,
         ELAPSED,
         ERROR_TEXT,
         ID,
         IDENTIFIER_TYPE,
-        IDENTIFIERS,
+        PRIORITY,
         PROCESSED,
         STATUS,
         SUBMITTED,
@@ -60,33 +74,62 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
 
     private boolean closed;
 
-    private long started;
+    private volatile long started;
+
+    private volatile boolean leased;
+
+    private volatile boolean leaseLost;
+
+    private int priorElapsed;
 
-    private final List<String> identifiers;
+    private final IIdentifierSource identifierSource;
 
     private final IdentifierType identifierType;
 
-    IndexRequestDTO(Resource source, String serverId) {
-        try {
-            this.identifiers = IOUtils.readLines(source.getInputStream(), "UTF-8");
-            this.identifierType = toIdentifierType(identifiers.isEmpty() ? "" : identifiers.remove(0).trim());
-            this.initial = true;
-            put(FieldType.ID, UUID.randomUUID().toString());
-            put(FieldType.SERVER_ID, serverId);
-            put(FieldType.SUBMITTED, now());
-            put(FieldType.TOTAL, identifiers.size());
-            put(FieldType.PROCESSED, 0);
-            put(FieldType.STATUS, 0);
-            put(FieldType.ELAPSED, 0);
-            put(FieldType.ERROR_TEXT, null);
-            put(FieldType.IDENTIFIER_TYPE, identifierType.name());
-            put(FieldType.IDENTIFIERS, listToString(identifiers));
-        } catch (IOException e) {
-            throw MiscUtil.toUnchecked(e);
-        }
+    private final IndexPriority priority;
+
+    /**
+     * Creates a new request.
+     *
+     * @param id The unique ID for the request.
+     * @param serverId The ID of the server creating the request.
+     * @param identifierType The identifier type.
+     * @param total The number of identifiers.
+     * @param priority The request's scheduling class.
+     * @param identifierSource Provides the request's identifiers.
+     */
+    IndexRequestDTO(
+            String id,
+            String serverId,
+            IdentifierType identifierType,
+            int total,
+            IndexPriority priority,
+            IIdentifierSource identifierSource) {
+        this.identifierType = identifierType;
+        this.priority = priority;
+        this.identifierSource = identifierSource;
+        this.initial = true;
+        put(FieldType.ID, id);
+        put(FieldType.SERVER_ID, serverId);
+        put(FieldType.SUBMITTED, now());
+        put(FieldType.TOTAL, total);
+        put(FieldType.PROCESSED, 0);
+        put(FieldType.STATUS, 0);
+        put(FieldType.ELAPSED, 0);
+        put(FieldType.ERROR_TEXT, null);
+        put(FieldType.IDENTIFIER_TYPE, identifierType.name());
+        put(FieldType.PRIORITY, priority.ordinal());
     }
 
-    public IndexRequestDTO(ResultSet rs) {
+    /**
+     * Creates a request from a result set.
+     *
+     * @param rs The result set.
+     * @param identifierSource Provides the request's identifiers.
+     */
+    public IndexRequestDTO(
+            ResultSet rs,
+            IIdentifierSource identifierSource) {
         put(FieldType.ID, rs, String.class);
         put(FieldType.SERVER_ID, rs, String.class);
         put(FieldType.SUBMITTED, rs, Date.class);
@@ -97,32 +140,13 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
         put(FieldType.ELAPSED, rs, Integer.class);
         put(FieldType.ERROR_TEXT, rs, String.class);
         put(FieldType.IDENTIFIER_TYPE, rs, String.class);
-        put(FieldType.IDENTIFIERS, rs, String.class);
-        identifiers = stringToList(get(FieldType.IDENTIFIERS, String.class));
+        put(FieldType.PRIORITY, rs, Integer.class);
+        this.identifierSource = identifierSource;
         identifierType = toIdentifierType(get(FieldType.IDENTIFIER_TYPE, String.class));
+        priority = toPriority(get(FieldType.PRIORITY, Integer.class));
         changed = false;
     }
 
-    /**
-     * Converts a newline-delimited string to a list.
-     *
-     * @param value The string to convert.
-     * @return The list of delimited values (never null).
-     */
-    private List<String> stringToList(String value) {
-        return value == null ? Collections.emptyList() : Arrays.asList(value.split("\n"));
-    }
-
-    /**
-     * Converts a list to a newline-delimited string.
-     *
-     * @param list The list to convert.
-     * @return The newline-delimited string.
-     */
-    private String listToString(List<String> list) {
-        return StringUtils.join(list, "\n");
-    }
-
     /**
      * Extracts a field from a result set and stores it in the DTO map.
      *
@@ -144,7 +168,7 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
      * @param field The field type.
      * @param value The value to store.
      */
-    private void put(
+    private synchronized void put(
             FieldType field,
             Object value) {
         String name = field.name();
@@ -164,7 +188,7 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
      * @return The field's value.
      */
     @SuppressWarnings("unchecked")
-    private <T> T get(
+    private synchronized <T> T get(
             FieldType field,
             Class<T> clazz) {
         return (T) map.get(field.name());
@@ -187,10 +211,38 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
     /**
      * Increments the number of processed entries.
      */
-    public void processed() {
+    public synchronized void processed() {
         put(FieldType.PROCESSED, getProcessed() + 1);
     }
 
+    /**
+     * Sets the number of processed entries.
+     *
+     * @param processed The number of processed entries.
+     */
+    void setProcessed(int processed) {
+        put(FieldType.PROCESSED, processed);
+    }
+
+    /**
+     * Updates the elapsed time to include the time since the request was started (if it is running).
+     */
+    public void updateElapsed() {
+        long started = this.started;
+
+        if (started > 0) {
+            put(FieldType.ELAPSED, priorElapsed + (int) (System.currentTimeMillis() - started));
+        }
+    }
+
+    /**
+     * Returns a snapshot of the field values.
+     */
+    @Override
+    public synchronized Map<String, Object> getMap() {
+        return new HashMap<>(map);
+    }
+
     /**
      * Returns the unique ID for this request.
      */
@@ -199,16 +251,40 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
     }
 
     /**
-     * Returns the list of identifiers for this request.
+     * Returns the scheduling class of this request.
+     */
+    public IndexPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Converts a stored priority to its enum value.  Entries created before priorities were introduced are treated as
+     * bulk requests.
+     *
+     * @param value The stored priority (may be null).
+     * @return The priority.
+     */
+    public static IndexPriority toPriority(Integer value) {
+        return value == null || value < 0 || value >= IndexPriority.values().length
+                ? IndexPriority.BULK : IndexPriority.values()[value];
+    }
+
+    /**
+     * Returns the total number of identifiers for this request.
+     */
+    public int getTotal() {
+        return get(FieldType.TOTAL, Integer.class);
+    }
+
+    /**
+     * Returns an iterator over the identifiers for this request.  Identifiers are streamed from their source, so the
+     * memory required does not depend on the size of the request.
      *
      * @param unprocessed If true, return only unprocessed entries.
-     * @return The list of identifiers.
+     * @return An iterator over the identifiers.
      */
-    public List<String> getIdentifiers(boolean unprocessed) {
-        List<String> list = unprocessed
-                ? identifiers.subList(getProcessed(), identifiers.size())
-                : identifiers;
-        return Collections.unmodifiableList(list);
+    public Iterator<String> iterateIdentifiers(boolean unprocessed) {
+        return identifierSource.iterator(unprocessed ? getProcessed() : 0);
     }
 
     /**
@@ -232,6 +308,8 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
      */
     public IndexRequestDTO start() {
         assertNotClosed();
+        Integer elapsed = get(FieldType.ELAPSED, Integer.class);
+        priorElapsed = elapsed == null ? 0 : elapsed;
         started = System.currentTimeMillis();
         error(null);
         put(FieldType.COMPLETED, null);
@@ -382,6 +460,38 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
         put(FieldType.STATUS, status.ordinal());
     }
 
+    /**
+     * Records that this server holds a lease on this request (cluster mode only).  Updates of a leased request are
+     * applied only while the lease is still held by this server.
+     */
+    void leased() {
+        leased = true;
+    }
+
+    /**
+     * Returns true if this server holds (or held) a lease on this request.
+     */
+    public boolean isLeased() {
+        return leased;
+    }
+
+    /**
+     * Stops this request locally after its lease has been lost to another server.  The request is marked as aborted so
+     * that the daemons processing it stop, but its state is no longer written to the database, since the request now
+     * belongs to the server that holds the lease.
+     */
+    public void leaseLost() {
+        leaseLost = true;
+        setStatus(IndexRequestStatus.ABORTED);
+    }
+
+    /**
+     * Returns true if this server's lease on this request has been lost.
+     */
+    public boolean isLeaseLost() {
+        return leaseLost;
+    }
+
     /**
      * Returns true if the request has not yet been persisted.
      */
@@ -392,14 +502,14 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
     /**
      * Returns true if the state of this request has changed.
      */
-    public boolean changed() {
+    public synchronized boolean changed() {
         return changed;
     }
 
     /**
      * Clears the changed flag.
      */
-    public void clearChanged() {
+    public synchronized void clearChanged() {
         this.changed = false;
         this.initial = false;
     }
@@ -442,13 +552,8 @@ public class IndexRequestDTO extends BaseDTO implements Closeable {
             setStatus(IndexRequestStatus.SUSPENDED);
         }
 
-        if (started > 0) {
-            int elapsed = (int) (System.currentTimeMillis() - started);
-            Integer current = get(FieldType.ELAPSED, Integer.class);
-            elapsed += current == null ? 0 : current;
-            put(FieldType.ELAPSED, elapsed);
-            started = 0;
-        }
+        updateElapsed();
+        started = 0;
 
         closeCallbacks.forEach(cb -> {
             try {
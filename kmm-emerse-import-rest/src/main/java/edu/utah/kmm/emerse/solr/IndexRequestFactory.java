@@ -1,12 +1,17 @@
 package edu.utah.kmm.emerse.solr;
 
 import edu.utah.kmm.emerse.database.DatabaseService;
+import edu.utah.kmm.emerse.solr.IndexRequestDTO.IndexPriority;
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Factory for creating and caching index requests.
@@ -15,9 +20,17 @@ public class IndexRequestFactory {
 
     private final Map<String, IndexRequestWrapper> cache = new HashMap<>();
 
+    private static final Log log = LogFactory.getLog(IndexRequestFactory.class);
+
     @Value("${server.uuid}")
     private String serverId;
 
+    @Value("${solr.request.dedupe:true}")
+    private boolean dedupe;
+
+    @Value("${solr.request.dedupe.limit:1000000}")
+    private int dedupeLimit;
+
     @Autowired
     private DatabaseService databaseService;
 
@@ -29,10 +42,39 @@ public class IndexRequestFactory {
         }
     };
 
-    public synchronized IndexRequestWrapper create(Resource resource) {
-        IndexRequestWrapper wrapper = new IndexRequestWrapper(resource, serverId, teardown);
-        cache.put(wrapper.getIndexRequestId(), wrapper);
-        return wrapper;
+    /**
+     * Creates an index request from a batch file.  Identifiers are streamed from the file directly into storage, so
+     * the memory required does not depend on the size of the file.
+     *
+     * @param resource The batch file.
+     * @param priority The request's scheduling class.
+     * @return The wrapper for the new index request.
+     */
+    public IndexRequestWrapper create(
+            Resource resource,
+            IndexPriority priority) {
+        String id = UUID.randomUUID().toString();
+
+        try (IdentifierFileReader reader = new IdentifierFileReader(resource, dedupe ? dedupeLimit : 0)) {
+            databaseService.saveIdentifiers(id, reader);
+
+            if (reader.getDuplicates() > 0) {
+                log.info("Skipped " + reader.getDuplicates() + " duplicate identifier(s) in index request " + id);
+            }
+
+            IndexRequestDTO request = new IndexRequestDTO(id, serverId, reader.getIdentifierType(), reader.getCount(),
+                    priority, databaseService.getIdentifierSource(id));
+            IndexRequestWrapper wrapper = new IndexRequestWrapper(request, teardown);
+
+            synchronized (this) {
+                cache.put(id, wrapper);
+            }
+
+            return wrapper;
+        } catch (Exception e) {
+            databaseService.deleteIdentifiers(id);
+            return MiscUtil.rethrow(e);
+        }
     }
 
     public synchronized IndexRequestWrapper create(
@@ -1,7 +1,7 @@
 package edu.utah.kmm.emerse.solr;
 
 import edu.utah.kmm.emerse.database.DatabaseService;
-import edu.utah.kmm.emerse.util.MiscUtil;
+import edu.utah.kmm.emerse.solr.IndexRequestDTO.IndexPriority;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,22 +9,49 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.RowMapper;
 
 import javax.annotation.PostConstruct;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A queue of index requests awaiting processing.
+ * A queue of index requests awaiting processing.  Requests submitted locally wake waiting daemons immediately.  The
+ * database is also polled for new entries as a fallback, with the polling interval backing off exponentially from a
+ * minimum to a maximum while no new entries are found.  Requests that have been split into chunks are also shared
+ * through this queue, so that idle daemons can assist with them.
+ * <p>
+ * Requests are held in a separate lane for each priority.  When requests are waiting in several lanes, the next one is
+ * selected by smooth weighted round robin, so that each lane receives a share of the daemons proportional to its
+ * weight.  Daemons may also be dedicated to interactive requests, in which case they never start bulk requests.
+ * <p>
+ * In cluster mode, entries are not pinned to the server that received them.  Instead, a server must claim an entry
+ * before processing it, which grants it a lease that is renewed in the background until the request is closed.  If a
+ * server dies, its leases expire and its running requests are reclaimed by other servers.
  */
-public class IndexRequestQueue implements RowMapper<String> {
+public class IndexRequestQueue {
 
     private static final Log log = LogFactory.getLog(IndexRequestQueue.class);
 
+    private static final RowMapper<Map.Entry<String, IndexPriority>> QUEUE_ENTRY_MAPPER = (rs, i) ->
+            new AbstractMap.SimpleImmutableEntry<>(rs.getString("ID"),
+                    IndexRequestDTO.toPriority(rs.getObject("PRIORITY", Integer.class)));
+
     @Autowired
     private DatabaseService databaseService;
 
-    private final Queue<IndexRequestWrapper> queue = new LinkedBlockingQueue<>();
+    private final Object queue = new Object();
+
+    private final Map<IndexPriority, Queue<IndexRequestWrapper>> lanes = new EnumMap<>(IndexPriority.class);
+
+    private final int[] weights = new int[IndexPriority.values().length];
+
+    private final int[] credits = new int[IndexPriority.values().length];
+
+    private final Set<String> queued = new HashSet<>();
+
+    private final List<ChunkedIndexRequest> shared = new ArrayList<>();
 
     @Autowired
     private IndexRequestFactory indexRequestFactory;
@@ -32,9 +59,32 @@ public class IndexRequestQueue implements RowMapper<String> {
     @Value("${solr.queue.polling.interval:60000}")
     private int pollingInterval;
 
-    private volatile long nextPoll;
+    @Value("${solr.queue.polling.min:1000}")
+    private int minPollingInterval;
+
+    @Value("${solr.queue.weight.interactive:4}")
+    private int interactiveWeight;
+
+    @Value("${solr.queue.weight.bulk:1}")
+    private int bulkWeight;
+
+    @Value("${solr.queue.lease.duration:300000}")
+    private long leaseDuration;
+
+    private final Map<String, IndexRequestDTO> leases = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService leaseRenewer;
+
+    private long backoff;
+
+    private long nextPoll;
+
+    private boolean polling;
 
     public IndexRequestQueue() {
+        for (IndexPriority priority : IndexPriority.values()) {
+            lanes.put(priority, new ArrayDeque<>());
+        }
     }
 
     @PostConstruct
@@ -43,47 +93,309 @@ public class IndexRequestQueue implements RowMapper<String> {
             log.warn("Solr queue polling interval (" + pollingInterval + " ms) was set to minimum threshold of 10000 ms.");
             pollingInterval = 10000;
         }
+
+        minPollingInterval = Math.max(100, Math.min(minPollingInterval, pollingInterval));
+        backoff = minPollingInterval;
+        weights[IndexPriority.INTERACTIVE.ordinal()] = Math.max(1, interactiveWeight);
+        weights[IndexPriority.BULK.ordinal()] = Math.max(0, bulkWeight);
+
+        if (databaseService.isClusterMode()) {
+            leaseDuration = Math.max(30000, leaseDuration);
+            long renewalInterval = leaseDuration / 3;
+            leaseRenewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "EMERSE-IT lease renewal");
+                thread.setDaemon(true);
+                return thread;
+            });
+            leaseRenewer.scheduleWithFixedDelay(this::renewLeases, renewalInterval, renewalInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the next request from the queue, waiting if necessary.  If the queue is empty and the current polling
+     * interval has elapsed, the database will be queried for new entries.
+     *
+     * @param timeout Maximum time (in ms) to wait for a request.
+     * @param interactiveOnly If true, only interactive requests are returned.
+     * @return The next request from the queue (null if none became available before the timeout expired, or if a
+     * shared request is waiting for assistance).
+     */
+    IndexRequestWrapper nextRequest(
+            long timeout,
+            boolean interactiveOnly) {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            IndexRequestWrapper wrapper;
+
+            synchronized (queue) {
+                if (nextShared(interactiveOnly) != null) {
+                    return null;
+                }
+
+                wrapper = dequeue(interactiveOnly);
+
+                if (wrapper != null) {
+                    queued.remove(wrapper.getIndexRequestId());
+
+                    if (leaseRenewer == null) {
+                        return wrapper;
+                    }
+                } else {
+                    long currentTime = System.currentTimeMillis();
+
+                    if (polling || currentTime < nextPoll) {
+                        long wait = (polling ? deadline : Math.min(nextPoll, deadline)) - currentTime;
+
+                        if (wait <= 0) {
+                            return null;
+                        }
+
+                        try {
+                            queue.wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+
+                        continue;
+                    }
+
+                    polling = true;
+                }
+            }
+
+            if (wrapper == null) {
+                poll();
+            } else if (claim(wrapper)) {
+                return wrapper;
+            }
+        }
+    }
+
+    /**
+     * Queries the database for new entries and adds them to the queue.  The query is performed without holding the
+     * queue lock, so that a slow database does not stall other users of the queue.
+     */
+    private void poll() {
+        List<Map.Entry<String, IndexPriority>> entries = Collections.emptyList();
+
+        try {
+            entries = databaseService.scanQueue(QUEUE_ENTRY_MAPPER);
+        } finally {
+            synchronized (queue) {
+                boolean added = false;
+
+                for (Map.Entry<String, IndexPriority> entry : entries) {
+                    added |= enqueue(entry.getKey(), entry.getValue());
+                }
+
+                backoff = added ? minPollingInterval : Math.min(backoff * 2, pollingInterval);
+                nextPoll = System.currentTimeMillis() + backoff;
+                polling = false;
+                queue.notifyAll();
+            }
+        }
     }
 
     /**
-     * Returns the next request from the queue.  If there are no more requests and the polling interval has been
-     * exceeded, the database will be queried for new entries.
+     * Removes the next request from the lanes, selecting among non-empty lanes by smooth weighted round robin.  Must
+     * be called while holding the queue lock.
      *
-     * @return The next request from the queue (possibly null).
+     * @param interactiveOnly If true, only the interactive lane is considered.
+     * @return The next request (null if none).
      */
-    IndexRequestWrapper nextRequest() {
+    private IndexRequestWrapper dequeue(boolean interactiveOnly) {
+        IndexPriority selected = null;
+        int total = 0;
+
+        for (IndexPriority priority : IndexPriority.values()) {
+            int i = priority.ordinal();
+
+            if (lanes.get(priority).isEmpty() || (interactiveOnly && priority != IndexPriority.INTERACTIVE)) {
+                credits[i] = 0;
+                continue;
+            }
+
+            credits[i] += weights[i];
+            total += weights[i];
+
+            if (selected == null || credits[i] > credits[selected.ordinal()]) {
+                selected = priority;
+            }
+        }
+
+        if (selected == null) {
+            return null;
+        }
+
+        credits[selected.ordinal()] -= total;
+        return lanes.get(selected).remove();
+    }
+
+    /**
+     * Adds a request to the queue, waking the waiting daemons.  Has no effect if the request is already queued.
+     *
+     * @param indexRequestId The index request id.
+     * @param priority The request's priority.
+     */
+    public void submit(
+            String indexRequestId,
+            IndexPriority priority) {
         synchronized (queue) {
-            long currentTime = System.currentTimeMillis();
+            if (enqueue(indexRequestId, priority)) {
+                queue.notifyAll();
+            }
+        }
+    }
 
-            if (queue.isEmpty() && currentTime > nextPoll) {
-                nextPoll = currentTime + pollingInterval;
-                databaseService.refreshQueue(this);
+    /**
+     * Returns a shared request that still has unclaimed chunks.  Interactive requests are preferred, and a shared bulk
+     * request is not returned while an interactive request is waiting to be started.
+     *
+     * @param interactiveOnly If true, only interactive requests are returned.
+     * @return A shared request (possibly null).
+     */
+    ChunkedIndexRequest nextShared(boolean interactiveOnly) {
+        synchronized (queue) {
+            shared.removeIf(request -> !request.hasUnclaimed());
+            ChunkedIndexRequest bulk = null;
+
+            for (ChunkedIndexRequest request : shared) {
+                if (request.getRequest().getPriority() == IndexPriority.INTERACTIVE) {
+                    return request;
+                }
+
+                bulk = bulk == null ? request : bulk;
             }
 
-            return queue.isEmpty() ? null : queue.remove();
+            return interactiveOnly || !lanes.get(IndexPriority.INTERACTIVE).isEmpty() ? null : bulk;
+        }
+    }
+
+    /**
+     * Makes a chunked request available to other daemons, waking any that are waiting.
+     *
+     * @param request The chunked request.
+     */
+    void share(ChunkedIndexRequest request) {
+        synchronized (queue) {
+            shared.add(request);
+            queue.notifyAll();
         }
     }
 
     /**
-     * Forces the queue to be refreshed immediately once it is empty.
+     * Withdraws a chunked request from other daemons.
+     *
+     * @param request The chunked request.
      */
-    public void refreshNow() {
-        this.nextPoll = 0;
+    void unshare(ChunkedIndexRequest request) {
+        synchronized (queue) {
+            shared.remove(request);
+        }
     }
 
     /**
-     * Populates the queue from a result set.
+     * Wakes all waiting daemons without changing the queue.
      */
-    @Override
-    public String mapRow(
-            ResultSet rs,
-            int i) {
+    void wakeAll() {
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * Claims a request for this server (cluster mode only).  Once claimed, the request's lease is renewed until the
+     * request is closed.
+     *
+     * @param wrapper The request wrapper.
+     * @return True if the request was claimed.
+     */
+    private boolean claim(IndexRequestWrapper wrapper) {
+        String id = wrapper.getIndexRequestId();
+
         try {
-            String id = rs.getString("ID");
-            queue.add(indexRequestFactory.create(id, true));
-            return id;
-        } catch (SQLException e) {
-            return MiscUtil.rethrow(e);
+            if (!databaseService.claimIndexRequest(id, getLeaseSeconds())) {
+                if (!wrapper.isHydrated()) {
+                    indexRequestFactory.remove(id);
+                }
+
+                return false;
+            }
+
+            IndexRequestDTO request = wrapper.get();
+            request.leased();
+            leases.put(id, request);
+            request.registerCloseCallback(closed -> releaseLease(id));
+            return true;
+        } catch (Exception e) {
+            log.error("Error claiming index request " + id, e);
+            releaseLease(id);
+            return false;
         }
     }
+
+    /**
+     * Releases this server's lease on a request.
+     *
+     * @param id The index request id.
+     */
+    private void releaseLease(String id) {
+        if (leases.remove(id) != null) {
+            databaseService.releaseIndexRequest(id);
+        }
+    }
+
+    /**
+     * Renews this server's leases on all requests it is processing.  A request whose lease has been lost is stopped
+     * locally, since another server may already have claimed it.
+     */
+    private void renewLeases() {
+        try {
+            List<String> ids = new ArrayList<>(leases.keySet());
+
+            if (!ids.isEmpty()) {
+                for (String id : databaseService.renewIndexRequestLeases(ids, getLeaseSeconds())) {
+                    IndexRequestDTO request = leases.remove(id);
+                    log.warn("Lease on index request " + id + " was lost and may have been claimed by another server");
+
+                    if (request != null) {
+                        request.leaseLost();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error renewing index request leases", e);
+        }
+    }
+
+    private int getLeaseSeconds() {
+        return (int) (leaseDuration / 1000);
+    }
+
+    /**
+     * Adds a request to the queue if not already present.  Must be called while holding the queue lock.
+     *
+     * @param indexRequestId The index request id.
+     * @param priority The request's priority.
+     * @return True if the request was added.
+     */
+    private boolean enqueue(
+            String indexRequestId,
+            IndexPriority priority) {
+        if (queued.add(indexRequestId)) {
+            lanes.get(priority).add(indexRequestFactory.create(indexRequestId, true));
+            return true;
+        }
+
+        return false;
+    }
 }
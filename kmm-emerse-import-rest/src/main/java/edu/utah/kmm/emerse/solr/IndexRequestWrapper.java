@@ -2,7 +2,6 @@ package edu.utah.kmm.emerse.solr;
 
 import edu.utah.kmm.emerse.solr.IndexRequestDTO.ICloseCallback;
 import org.codehaus.janino.util.Producer;
-import org.springframework.core.io.Resource;
 
 /**
  * A wrapper for an index request, allowing lazy instantiation of an index request.
@@ -28,10 +27,9 @@ public class IndexRequestWrapper {
     }
 
     IndexRequestWrapper(
-            Resource resource,
-            String serverId,
+            IndexRequestDTO indexRequestDTO,
             ICloseCallback teardown) {
-        indexRequestDTO = new IndexRequestDTO(resource, serverId);
+        this.indexRequestDTO = indexRequestDTO;
         this.indexRequestId = indexRequestDTO.getId();
         this.teardown = teardown;
         this.factory = null;
@@ -1,7 +1,8 @@
 package edu.utah.kmm.emerse.solr;
 
 /**
- * Tracks indexing successes and failures.
+ * Tracks indexing successes, failures, and documents skipped because they were unchanged.  Results may be updated by
+ * Solr writer threads, so all access is synchronized.
  */
 public class IndexResult {
 
@@ -9,29 +10,58 @@ public class IndexResult {
 
     private int failed;
 
-    public IndexResult success(boolean success) {
+    private int skipped;
+
+    public synchronized IndexResult success(boolean success) {
         int i = success ? ++succeeded : ++failed;
         return this;
     }
 
+    /**
+     * Records a document that was skipped because it had not changed since it was last indexed.
+     */
+    public synchronized IndexResult skip() {
+        skipped++;
+        return this;
+    }
+
     public void combine(IndexResult result) {
-        succeeded += result.succeeded;
-        failed += result.failed;
+        int succeeded = result.getSucceeded();
+        int failed = result.getFailed();
+        int skipped = result.getSkipped();
+
+        synchronized (this) {
+            this.succeeded += succeeded;
+            this.failed += failed;
+            this.skipped += skipped;
+        }
     }
 
-    public int getSucceeded() {
+    /**
+     * Reclassifies a success as a failure.  Used when a document that was handed off for indexing is later rejected.
+     */
+    public synchronized void revokeSuccess() {
+        succeeded--;
+        failed++;
+    }
+
+    public synchronized int getSucceeded() {
         return succeeded;
     }
 
-    public int getFailed() {
+    public synchronized int getFailed() {
         return failed;
     }
 
-    public int getTotal() {
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    public synchronized int getTotal() {
         return succeeded + failed;
     }
 
-    public double getPercentageSucceeded() {
+    public synchronized double getPercentageSucceeded() {
         return (double) succeeded / (double) getTotal() * 100.0;
     }
 }
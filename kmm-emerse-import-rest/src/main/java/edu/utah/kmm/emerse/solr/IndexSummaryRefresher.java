@@ -0,0 +1,166 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.database.DatabaseService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains the SOLR index summary in the background.  Refresh requests are coalesced so that the summary is updated
+ * at most once per refresh interval.  The range of document dates is tracked incrementally from the documents being
+ * indexed, so the sorted date queries are only needed when the range is not yet known.
+ */
+public class IndexSummaryRefresher implements Closeable {
+
+    private static final Log log = LogFactory.getLog(IndexSummaryRefresher.class);
+
+    private final SolrService solrService;
+
+    private final DatabaseService databaseService;
+
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean pending;
+
+    private boolean rangeKnown;
+
+    private long generation;
+
+    private Date start;
+
+    private Date end;
+
+    /**
+     * Creates a summary refresher.
+     *
+     * @param solrService The Solr service.
+     * @param databaseService The database service.
+     * @param interval The minimum interval (in ms) between refreshes.
+     */
+    public IndexSummaryRefresher(
+            SolrService solrService,
+            DatabaseService databaseService,
+            long interval) {
+        this.solrService = solrService;
+        this.databaseService = databaseService;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "EMERSE-IT index summary refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        interval = Math.max(interval, 1000);
+        scheduler.scheduleWithFixedDelay(this::refreshIfPending, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Requests a refresh of the summary.  The refresh will occur on the next scheduled cycle.
+     */
+    public void requestRefresh() {
+        pending = true;
+    }
+
+    /**
+     * Extends the tracked date range to include the date of a newly indexed document.
+     *
+     * @param date The document date (may be null).
+     */
+    public synchronized void observe(Date date) {
+        if (date != null) {
+            start = start == null || date.before(start) ? date : start;
+            end = end == null || date.after(end) ? date : end;
+        }
+    }
+
+    /**
+     * Discards the tracked date range, forcing it to be recomputed on the next refresh.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        rangeKnown = false;
+        start = null;
+        end = null;
+    }
+
+    /**
+     * Refreshes the summary if a refresh has been requested.
+     */
+    private void refreshIfPending() {
+        if (pending) {
+            try {
+                refresh();
+            } catch (Exception e) {
+                log.error("Error refreshing index summary", e);
+            }
+        }
+    }
+
+    /**
+     * Refreshes the summary immediately.
+     */
+    public void refresh() {
+        pending = false;
+        long patientCount = solrService.getPatientCount();
+        boolean known;
+        long stamp;
+        Date first;
+        Date last;
+
+        synchronized (this) {
+            known = rangeKnown;
+            stamp = generation;
+        }
+
+        if (!known) {
+            queryRange(stamp);
+        }
+
+        synchronized (this) {
+            first = start;
+            last = end;
+        }
+
+        databaseService.updateSolrIndexSummary(first, last, patientCount);
+    }
+
+    /**
+     * Queries the document date range.  The range is marked as known only if both queries succeed and the range was
+     * not invalidated while they were running.  Otherwise, the queries are repeated on the next refresh.
+     *
+     * @param stamp The generation of the range when the queries were started.
+     */
+    private void queryRange(long stamp) {
+        Date earliest;
+        Date latest;
+
+        try {
+            earliest = solrService.getDateBound(true);
+            latest = solrService.getDateBound(false);
+        } catch (Exception e) {
+            log.error("Error querying document date range", e);
+            return;
+        }
+
+        synchronized (this) {
+            if (generation == stamp) {
+                observe(earliest);
+                observe(latest);
+                rangeKnown = true;
+            }
+        }
+    }
+
+    /**
+     * Stops background refreshes.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+}
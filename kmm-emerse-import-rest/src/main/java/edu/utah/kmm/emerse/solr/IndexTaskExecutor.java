@@ -0,0 +1,156 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.throttle.AdaptiveLimiter;
+import edu.utah.kmm.emerse.throttle.ElasticPermits;
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs indexing tasks for the virtual execution mode.  Where the runtime supports virtual threads, each task runs on
+ * its own virtual thread, so that a large number of blocking FHIR, database and Solr calls may be in flight without
+ * sizing a large platform thread pool.  Otherwise, tasks run on a pool of platform threads.  In either case, the number
+ * of identifiers in progress across all requests follows the FHIR server's adaptive concurrency limit, bounded by a
+ * global maximum.
+ */
+public class IndexTaskExecutor implements Closeable {
+
+    private static final Log log = LogFactory.getLog(IndexTaskExecutor.class);
+
+    private final ExecutorService executor;
+
+    private final ElasticPermits permits;
+
+    private final int concurrency;
+
+    /**
+     * Creates a task executor.
+     *
+     * @param concurrency Maximum number of identifiers in progress at once.
+     * @param limiter The limiter whose limit determines the number of identifiers in progress at once.
+     */
+    public IndexTaskExecutor(
+            int concurrency,
+            AdaptiveLimiter limiter) {
+        this.concurrency = Math.max(1, concurrency);
+        this.permits = new ElasticPermits("identifiers", limiter, this.concurrency);
+        ExecutorService executor = newVirtualThreadExecutor();
+        boolean virtual = executor != null;
+
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(this.concurrency, runnable -> {
+                Thread thread = new Thread(runnable, "EMERSE-IT indexing worker #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        this.executor = executor;
+        log.info("Using " + (virtual ? "virtual" : "platform") + " threads for indexing tasks (concurrency "
+                + this.concurrency + ")");
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each task.  Virtual threads are obtained reflectively, so
+     * that the application still runs on older runtimes.
+     *
+     * @return The executor, or null if virtual threads are not supported.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            log.warn("Virtual threads are not supported by this runtime; falling back to platform threads");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the permits that limit the number of identifiers in progress.
+     */
+    public ElasticPermits getPermits() {
+        return permits;
+    }
+
+    /**
+     * Returns the maximum number of identifiers in progress at once.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Runs several copies of a task under the calling thread's index context, waiting for all to finish.
+     *
+     * @param count The number of copies to run.
+     * @param task The task.
+     */
+    public void invokeAll(
+            int count,
+            Runnable task) {
+        Callable<Object> callable = IndexContext.propagate(Executors.callable(task));
+        List<Future<Object>> futures = new ArrayList<>(count);
+        Throwable failure = null;
+
+        for (int i = 0; i < count; i++) {
+            futures.add(executor.submit(callable));
+        }
+
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                MiscUtil.rethrow(e);
+            } catch (ExecutionException e) {
+                failure = failure == null ? e.getCause() : failure;
+            }
+        }
+
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+
+        if (failure != null) {
+            MiscUtil.rethrow((Exception) failure);
+        }
+    }
+
+    /**
+     * Runs a unit of work once a slot under the global concurrency limit is available.
+     *
+     * @param task The unit of work.
+     * @param <T> The result type.
+     * @return The result.
+     */
+    public <T> T limit(Callable<T> task) {
+        permits.acquire();
+
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            return MiscUtil.rethrow(e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Stops the executor.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
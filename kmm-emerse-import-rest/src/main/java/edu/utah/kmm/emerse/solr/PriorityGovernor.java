@@ -0,0 +1,101 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.util.MiscUtil;
+
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits bulk indexing while interactive indexing is in progress, so that interactive requests are not starved of
+ * FHIR, database and Solr capacity by large background jobs.  Interactive work registers itself for its duration.
+ * Bulk work obtains a permit for each identifier it processes, and while any interactive work is in progress, the
+ * number of bulk permits outstanding is limited.  Bulk work therefore yields at identifier boundaries.
+ */
+public class PriorityGovernor {
+
+    /**
+     * Releases a permit when closed.
+     */
+    public interface Permit extends Closeable {
+
+        @Override
+        void close();
+
+    }
+
+    private final int contendedPermits;
+
+    private int interactive;
+
+    private int bulk;
+
+    /**
+     * Creates a governor.
+     *
+     * @param contendedPermits Maximum number of bulk permits outstanding while interactive work is in progress.  If
+     *                         zero, bulk work pauses entirely.
+     */
+    public PriorityGovernor(int contendedPermits) {
+        this.contendedPermits = Math.max(0, contendedPermits);
+    }
+
+    /**
+     * Registers interactive work.  Never waits.
+     *
+     * @return A permit that must be closed when the interactive work has finished.
+     */
+    public Permit interactive() {
+        synchronized (this) {
+            interactive++;
+        }
+
+        return () -> {
+            synchronized (this) {
+                if (--interactive == 0) {
+                    notifyAll();
+                }
+            }
+        };
+    }
+
+    /**
+     * Obtains a permit for a unit of bulk work, waiting while the bulk permits are exhausted.
+     *
+     * @return A permit that must be closed when the unit of work has finished.
+     */
+    public Permit bulk() {
+        synchronized (this) {
+            try {
+                while (interactive > 0 && bulk >= contendedPermits) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                MiscUtil.rethrow(e);
+            }
+
+            bulk++;
+        }
+
+        return () -> {
+            synchronized (this) {
+                bulk--;
+                notifyAll();
+            }
+        };
+    }
+
+    /**
+     * Returns the state of the governor for reporting: the number of interactive units of work in progress and the
+     * number of bulk permits outstanding.
+     */
+    public synchronized Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("interactive", interactive);
+        status.put("bulk", bulk);
+        status.put("contendedPermits", contendedPermits);
+        return status;
+    }
+
+}
@@ -0,0 +1,214 @@
+package edu.utah.kmm.emerse.solr;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordinates Solr commits across all indexing daemons.  Depending on configuration, updates are made visible by
+ * Solr's commitWithin, by periodic soft commits, by periodic hard commits, and/or by a hard commit when an index
+ * request completes.  A collection is only committed if it has received updates since its last commit, so concurrent
+ * commit requests from several daemons are coalesced into a single commit.
+ */
+public class SolrCommitManager implements Closeable {
+
+    private static final Log log = LogFactory.getLog(SolrCommitManager.class);
+
+    private final SolrClient solrClient;
+
+    private final int commitWithin;
+
+    private final boolean commitOnRequestEnd;
+
+    private final boolean softCommits;
+
+    private final Runnable onCommit;
+
+    private final Map<String, AtomicLong> updates = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> durable = new HashMap<>();
+
+    private final Map<String, Long> visible = new HashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a commit manager.
+     *
+     * @param solrClient The Solr client.
+     * @param commitWithin If positive, the commitWithin value (in ms) to attach to every update request.
+     * @param softInterval If positive, the interval (in ms) between soft commits.
+     * @param hardInterval If positive, the interval (in ms) between hard commits.
+     * @param commitOnRequestEnd If true, perform a hard commit when an index request completes.
+     * @param onCommit Invoked after one or more collections have been committed.
+     */
+    public SolrCommitManager(
+            SolrClient solrClient,
+            int commitWithin,
+            long softInterval,
+            long hardInterval,
+            boolean commitOnRequestEnd,
+            Runnable onCommit) {
+        this.solrClient = solrClient;
+        this.commitWithin = commitWithin;
+        this.commitOnRequestEnd = commitOnRequestEnd;
+        this.softCommits = softInterval > 0;
+        this.onCommit = onCommit;
+
+        if (softInterval > 0 || hardInterval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "EMERSE-IT solr commit manager");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            if (softInterval > 0) {
+                scheduler.scheduleWithFixedDelay(() -> commitAll(true, true), softInterval, softInterval, TimeUnit.MILLISECONDS);
+            }
+
+            if (hardInterval > 0) {
+                scheduler.scheduleWithFixedDelay(() -> commitAll(false, !softCommits), hardInterval, hardInterval, TimeUnit.MILLISECONDS);
+            }
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Applies the commit policy to an update request before it is sent.
+     *
+     * @param request The update request.
+     */
+    public void prepare(UpdateRequest request) {
+        if (commitWithin > 0) {
+            request.setCommitWithin(commitWithin);
+        }
+    }
+
+    /**
+     * Records that a collection has received updates.
+     *
+     * @param collection The updated collection.
+     */
+    public void updated(String collection) {
+        updates.computeIfAbsent(collection, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Notifies the commit manager that an index request has completed.
+     */
+    public void requestCompleted() {
+        if (commitOnRequestEnd) {
+            commit();
+        }
+    }
+
+    /**
+     * Performs a hard commit of all collections with uncommitted updates, making those updates visible.
+     */
+    public void commit() {
+        if (!commitAll(false, true)) {
+            throw new IllegalStateException("One or more Solr collections failed to commit.");
+        }
+    }
+
+    /**
+     * Commits all collections with uncommitted updates.
+     *
+     * @param soft If true, perform a soft commit; otherwise, a hard commit.
+     * @param openSearcher If true, open a new searcher so that the committed updates become visible.
+     * @return False if any commit failed.
+     */
+    private synchronized boolean commitAll(
+            boolean soft,
+            boolean openSearcher) {
+        boolean committed = false;
+        boolean success = true;
+
+        for (Map.Entry<String, AtomicLong> entry : updates.entrySet()) {
+            try {
+                committed |= commit(entry.getKey(), entry.getValue().get(), soft, openSearcher);
+            } catch (Exception e) {
+                log.error("Error committing collection " + entry.getKey(), e);
+                success = false;
+            }
+        }
+
+        if (committed && onCommit != null) {
+            try {
+                onCommit.run();
+            } catch (Exception e) {
+                log.error("Error in post-commit processing", e);
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * Commits a single collection if it has received updates that have not yet been made durable (for a hard commit)
+     * or visible (for a soft commit or a hard commit that opens a new searcher).
+     *
+     * @param collection The collection to commit.
+     * @param sequence The collection's current update sequence.
+     * @param soft If true, perform a soft commit; otherwise, a hard commit.
+     * @param openSearcher If true, open a new searcher so that the committed updates become visible.
+     * @return True if a commit was performed.
+     */
+    private boolean commit(
+            String collection,
+            long sequence,
+            boolean soft,
+            boolean openSearcher) throws Exception {
+        boolean makeVisible = soft || openSearcher;
+        boolean makeDurable = !soft;
+
+        if ((!makeVisible || sequence <= visible.getOrDefault(collection, 0L))
+                && (!makeDurable || sequence <= durable.getOrDefault(collection, 0L))) {
+            return false;
+        }
+
+        UpdateRequest request = new UpdateRequest();
+        request.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, true, soft);
+
+        if (!openSearcher) {
+            request.setParam("openSearcher", "false");
+        }
+
+        request.process(solrClient, collection);
+
+        if (makeVisible) {
+            visible.put(collection, sequence);
+        }
+
+        if (makeDurable) {
+            durable.put(collection, sequence);
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops the commit timers and performs a final hard commit.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        commitAll(false, true);
+    }
+
+}
@@ -3,12 +3,18 @@ package edu.utah.kmm.emerse.solr;
 import edu.utah.kmm.emerse.database.DatabaseService;
 import edu.utah.kmm.emerse.document.ContentDTO;
 import edu.utah.kmm.emerse.document.DocumentDTO;
+import edu.utah.kmm.emerse.document.DocumentFetchPool;
 import edu.utah.kmm.emerse.document.DocumentService;
+import edu.utah.kmm.emerse.document.DocumentWatermark;
+import edu.utah.kmm.emerse.fhir.FhirService;
 import edu.utah.kmm.emerse.fhir.IdentifierType;
 import edu.utah.kmm.emerse.patient.PatientDTO;
 import edu.utah.kmm.emerse.patient.PatientService;
 import edu.utah.kmm.emerse.security.Credentials;
+import edu.utah.kmm.emerse.solr.IndexRequestDTO.IndexPriority;
 import edu.utah.kmm.emerse.solr.IndexRequestDTO.IndexRequestStatus;
+import edu.utah.kmm.emerse.throttle.AdaptiveLimiter;
+import edu.utah.kmm.emerse.throttle.ElasticPermits;
 import edu.utah.kmm.emerse.util.MiscUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -18,8 +24,10 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
 import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.request.GenericSolrRequest;
+import org.apache.solr.client.solrj.request.RequestWriter;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
@@ -29,12 +37,21 @@ import org.apache.solr.common.util.NamedList;
 import org.hl7.fhir.dstu3.model.DocumentReference;
 import org.hl7.fhir.dstu3.model.Patient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.util.Assert;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 /**
  * Solr-related services.
@@ -53,6 +70,8 @@ public class SolrService {
 
     private final HttpSolrClient solrClient;
 
+    private final GzipRequestInterceptor gzipInterceptor = new GzipRequestInterceptor();
+
     @Autowired
     private DocumentService documentService;
 
@@ -68,6 +87,120 @@ public class SolrService {
     @Autowired
     private IndexRequestQueue indexRequestQueue;
 
+    @Autowired
+    private DocumentFetchPool documentFetchPool;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @Value("${fhir.document.fetch.parallelism:32}")
+    private int fetchParallelism;
+
+    private ElasticPermits fetchPermits;
+
+    @Value("${solr.update.batch.size:500}")
+    private int batchSize;
+
+    @Value("${solr.update.batch.bytes:5000000}")
+    private long batchBytes;
+
+    @Value("${solr.update.batch.interval:2000}")
+    private long batchInterval;
+
+    @Value("${solr.commit.within:0}")
+    private int commitWithin;
+
+    @Value("${solr.commit.soft.interval:10000}")
+    private long softCommitInterval;
+
+    @Value("${solr.commit.hard.interval:60000}")
+    private long hardCommitInterval;
+
+    @Value("${solr.commit.request.end:true}")
+    private boolean commitOnRequestEnd;
+
+    @Value("${solr.summary.interval:30000}")
+    private long summaryInterval;
+
+    private IndexSummaryRefresher summaryRefresher;
+
+    private SolrCommitManager commitManager;
+
+    @Value("${solr.update.mode:BATCH}")
+    private String updateMode;
+
+    @Value("${solr.update.queue.size:1000}")
+    private int updateQueueSize;
+
+    @Value("${solr.update.threads:2}")
+    private int updateThreads;
+
+    private BaseSolrWriter solrWriter;
+
+    @Value("${solr.update.limit.initial:4}")
+    private int initialUpdateLimit;
+
+    @Value("${solr.update.limit.min:1}")
+    private int minUpdateLimit;
+
+    @Value("${solr.update.limit.max:32}")
+    private int maxUpdateLimit;
+
+    @Value("${solr.update.limit.tolerance:2.0}")
+    private double updateLimitTolerance;
+
+    @Value("${solr.update.limit.backoff:0.7}")
+    private double updateLimitBackoff;
+
+    private AdaptiveLimiter updateLimiter;
+
+    @Value("${solr.request.chunk.size:100}")
+    private int chunkSize;
+
+    @Value("${solr.index.incremental:true}")
+    private boolean incrementalIndexing;
+
+    private boolean watermarksAvailable;
+
+    private final List<DocumentWatermark> pendingWatermarks = new ArrayList<>();
+
+    @Value("${solr.digest.index.file:}")
+    private String digestIndexFile;
+
+    @Value("${solr.digest.index.capacity:1048576}")
+    private long digestIndexCapacity;
+
+    private DigestIndex digestIndex;
+
+    private volatile boolean digestIndexFull;
+
+    @Value("${solr.checkpoint.interval:5000}")
+    private long checkpointInterval;
+
+    @Value("${solr.checkpoint.count:100}")
+    private int checkpointCount;
+
+    private CheckpointScheduler checkpointScheduler;
+
+    @Value("${solr.priority.bulk.contended:1}")
+    private int contendedBulkPermits;
+
+    private PriorityGovernor priorityGovernor;
+
+    @Value("${solr.execution.mode:PLATFORM}")
+    private String executionMode;
+
+    @Value("${solr.execution.concurrency:200}")
+    private int executionConcurrency;
+
+    private IndexTaskExecutor taskExecutor;
+
+    @Value("${solr.update.format:JAVABIN}")
+    private String updateFormat;
+
+    @Value("${solr.update.compress.threshold:-1}")
+    private long compressThreshold;
+
     public SolrService(
             String solrServerRoot,
             Credentials credentials) {
@@ -76,6 +209,7 @@ public class SolrService {
         HttpClient client = HttpClientBuilder.create()
                 .addInterceptorFirst((HttpRequestInterceptor) (httpRequest, httpContext) ->
                         httpRequest.setHeader(HttpHeaders.AUTHORIZATION, header))
+                .addInterceptorFirst(gzipInterceptor)
                 .build();
         solrClient = new HttpSolrClient.Builder(solrServerRoot)
                 .withHttpClient(client)
@@ -83,6 +217,98 @@ public class SolrService {
                 .build();
     }
 
+    @PostConstruct
+    private void init() {
+        solrClient.setRequestWriter("XML".equalsIgnoreCase(updateFormat) ? new RequestWriter() : new BinaryRequestWriter());
+        gzipInterceptor.setThreshold(compressThreshold);
+        log.info("Using Solr update format: " + updateFormat
+                + (compressThreshold < 0 ? "" : " (gzip above " + compressThreshold + " bytes)"));
+        summaryRefresher = new IndexSummaryRefresher(this, databaseService, summaryInterval);
+        commitManager = new SolrCommitManager(solrClient, commitWithin, softCommitInterval, hardCommitInterval,
+                commitOnRequestEnd, summaryRefresher::requestRefresh);
+        updateLimiter = new AdaptiveLimiter("solr", initialUpdateLimit, minUpdateLimit, maxUpdateLimit,
+                updateLimitTolerance, updateLimitBackoff);
+        solrWriter = "STREAMING".equalsIgnoreCase(updateMode)
+                ? new StreamingSolrWriter(solrClient, commitManager, updateLimiter, batchSize, updateQueueSize, updateThreads)
+                : new BatchSolrWriter(solrClient, commitManager, updateLimiter, batchSize, batchBytes, batchInterval);
+        log.info("Using Solr update mode: " + updateMode);
+        checkpointScheduler = new CheckpointScheduler(databaseService, checkpointInterval, checkpointCount);
+        priorityGovernor = new PriorityGovernor(contendedBulkPermits);
+        fetchPermits = new ElasticPermits("document fetch", fhirService.getLimiter(),
+                documentFetchPool.getMaxPoolSize());
+
+        if ("VIRTUAL".equalsIgnoreCase(executionMode)) {
+            taskExecutor = new IndexTaskExecutor(executionConcurrency, fhirService.getLimiter());
+        }
+
+        watermarksAvailable = databaseService.hasDocumentWatermarks();
+
+        if (!watermarksAvailable && incrementalIndexing) {
+            log.warn("DOCUMENT_WATERMARK table not found; incremental indexing is disabled."
+                    + "  Run emerse-it-schema.sql to enable it.");
+            incrementalIndexing = false;
+        }
+
+        if (!digestIndexFile.isEmpty() && !incrementalIndexing) {
+            log.warn("Ignoring solr.digest.index.file because incremental indexing is disabled.");
+        } else if (!digestIndexFile.isEmpty() && databaseService.isClusterMode()) {
+            log.warn("Ignoring solr.digest.index.file in cluster mode: a local digest index would not be cleared"
+                    + " when another server deletes the document collection.");
+        } else if (!digestIndexFile.isEmpty()) {
+            try {
+                digestIndex = new DigestIndex(new File(digestIndexFile), digestIndexCapacity);
+            } catch (IOException e) {
+                MiscUtil.rethrow(e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        try {
+            solrWriter.close();
+            commitManager.close();
+            saveWatermarks();
+            checkpointScheduler.close();
+        } finally {
+            if (taskExecutor != null) {
+                taskExecutor.close();
+            }
+
+            summaryRefresher.close();
+            closeDigestIndex();
+        }
+    }
+
+    /**
+     * Returns the adaptive concurrency limiter for Solr update requests.
+     */
+    public AdaptiveLimiter getUpdateLimiter() {
+        return updateLimiter;
+    }
+
+    /**
+     * Returns the state of the permits that size the number of indexing workers from the FHIR server's concurrency
+     * limit.
+     */
+    public List<Map<String, Object>> getWorkerStatus() {
+        List<Map<String, Object>> status = new ArrayList<>();
+        status.add(fetchPermits.getStatus());
+
+        if (taskExecutor != null) {
+            status.add(taskExecutor.getPermits().getStatus());
+        }
+
+        return status;
+    }
+
+    /**
+     * Returns the governor that limits bulk indexing while interactive indexing is in progress.
+     */
+    public PriorityGovernor getPriorityGovernor() {
+        return priorityGovernor;
+    }
+
     public String getSolrVersion() {
         try {
             SolrParams solrParams = new MapSolrParams(Collections.emptyMap());
@@ -118,17 +344,21 @@ public class SolrService {
      * @return The indexing result.
      */
     public IndexResult batchIndexImmediate(Resource resource) {
-        return processRequest(indexRequestFactory.create(resource).get());
+        return processRequest(indexRequestFactory.create(resource, IndexPriority.INTERACTIVE).get());
     }
 
     /**
      * Creates an index request from a resource, then queues it.
      *
      * @param resource Resource containing the index request.
+     * @param priority The request's scheduling class.
      */
-    public void batchIndexQueued(Resource resource) {
-        indexRequestFactory.create(resource).get().close();
-        indexRequestQueue.refreshNow();
+    public void batchIndexQueued(
+            Resource resource,
+            IndexPriority priority) {
+        IndexRequestWrapper wrapper = indexRequestFactory.create(resource, priority);
+        wrapper.get().close();
+        indexRequestQueue.submit(wrapper.getIndexRequestId(), priority);
     }
 
     /**
@@ -144,29 +374,166 @@ public class SolrService {
 
         if (request.performAction(action.action) && !hydrated) {
             request.close();
-            indexRequestQueue.refreshNow();
+
+            if (request.getStatus() == IndexRequestStatus.QUEUED) {
+                indexRequestQueue.submit(request.getId(), request.getPriority());
+            }
         }
 
         return request;
     }
 
     /**
-     * Index all documents for a given patient.
+     * Index all documents for a given patient.  Documents are consumed incrementally as search result pages arrive.
      *
      * @param patient The patient resource.
      * @return The indexing result.
      */
     public IndexResult indexDocuments(Patient patient) {
-        IndexResult result = new IndexResult();
         databaseService.createOrUpdatePatient(patient, false);
-        List<DocumentReference> documents = documentService.getDocumentsForPatient(patient.getId(), IdentifierType.PATID);
+        Iterator<DocumentReference> documents = documentService.iterateDocumentsForPatient(patient.getId(), IdentifierType.PATID);
         String mrn = patientService.extractMRN(patient);
+        String patientId = patient.getIdElement().getIdPart();
+        Map<String, DocumentWatermark> watermarks = incrementalIndexing
+                ? databaseService.fetchDocumentWatermarks(patientId)
+                : Collections.emptyMap();
+        return indexDocuments(documents, document -> indexDocument(mrn, patientId, document, watermarks));
+    }
+
+    /**
+     * Index a stream of documents belonging to any number of patients, such as the output of a bulk export.  The MRN
+     * of each document's subject is looked up by the subject's FHIR id.  Subjects that are not found are resolved
+     * through the patient service instead.
+     *
+     * @param documents The documents.
+     * @param mrnLookup Returns the MRN of the patient with a given FHIR id (null if not known).
+     * @return The indexing result.
+     */
+    public IndexResult indexDocuments(
+            Iterator<DocumentReference> documents,
+            Function<String, String> mrnLookup) {
+        return indexDocuments(documents, document -> {
+            String patientId = getSubjectId(document);
+            String mrn = patientId == null ? null : mrnLookup.apply(patientId);
+
+            if (mrn != null) {
+                return indexDocument(mrn, patientId, document, null);
+            }
+
+            mrn = documentService.extractMRN(document);
 
-        for (DocumentReference document: documents) {
-            result.combine(indexDocument(mrn, document));
-         }
+            if (mrn == null) {
+                log.warn("Cannot determine subject of document: " + document.getId());
+                return new IndexResult().success(false);
+            }
+
+            return indexDocument(mrn, getSubjectId(document), document, null);
+        });
+    }
+
+    /**
+     * Index documents as they are consumed from an iterator.  Document content is fetched and indexed on the shared
+     * document fetch pool.  The number of documents in progress across all callers follows the FHIR server's adaptive
+     * concurrency limit, and a single caller never has more than the configured fetch parallelism in progress.
+     *
+     * @param documents The documents.
+     * @param indexer Indexes a single document.
+     * @return The indexing result.
+     */
+    private IndexResult indexDocuments(
+            Iterator<DocumentReference> documents,
+            Function<DocumentReference, IndexResult> indexer) {
+        IndexResult result = new IndexResult();
+
+        if (fetchParallelism <= 1) {
+            documents.forEachRemaining(document -> result.combine(indexer.apply(document)));
+            return result;
+        }
+
+        CompletionService<IndexResult> completionService = new ExecutorCompletionService<>(documentFetchPool);
+        Exception exception = null;
+        int inflight = 0;
+
+        while (documents.hasNext()) {
+            DocumentReference document = documents.next();
+
+            // While this caller has documents in progress, it collects their results rather than waiting for a
+            // permit, since other callers may hold the rest.  Only an idle caller waits.
+            while (inflight >= fetchParallelism || (inflight > 0 && !fetchPermits.tryAcquire())) {
+                exception = combineNext(completionService, result, exception);
+                inflight--;
+            }
+
+            if (inflight == 0) {
+                fetchPermits.acquire();
+            }
+
+            try {
+                completionService.submit(IndexContext.propagate(() -> {
+                    try {
+                        return indexer.apply(document);
+                    } finally {
+                        fetchPermits.release();
+                    }
+                }));
+            } catch (RuntimeException e) {
+                fetchPermits.release();
+                throw e;
+            }
+
+            inflight++;
+        }
+
+        while (inflight-- > 0) {
+            exception = combineNext(completionService, result, exception);
+        }
+
+        return exception == null ? result : MiscUtil.rethrow(exception);
+    }
+
+    /**
+     * Waits for the next document indexing task to complete and combines its result.
+     *
+     * @param completionService The completion service executing the tasks.
+     * @param result The result into which to combine the task's result.
+     * @param exception The first exception encountered so far (possibly null).
+     * @return The first exception encountered (possibly null).
+     */
+    private Exception combineNext(
+            CompletionService<IndexResult> completionService,
+            IndexResult result,
+            Exception exception) {
+        try {
+            result.combine(completionService.take().get());
+            return exception;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            return exception != null ? exception : cause instanceof Exception ? (Exception) cause : e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return exception != null ? exception : e;
+        }
+    }
+
+    /**
+     * Index all document(s) for a given id as a self-contained request, applying the commit policy on completion.
+     *
+     * @param id The id.
+     * @param type The id type.
+     * @return The indexing result.
+     */
+    public IndexResult indexImmediate(String id, IdentifierType type) {
+        IndexResult result = new IndexResult();
+
+        try (PriorityGovernor.Permit permit = priorityGovernor.interactive();
+             IndexContext context = IndexContext.begin(null, result)) {
+            try {
+                result.combine(indexDocuments(id, type));
+            } finally {
+                requestCompleted();
+            }
+        }
 
-        commit();
         return result;
     }
 
@@ -186,6 +553,27 @@ public class SolrService {
         }
     }
 
+    /**
+     * Index all document(s) for a given id on behalf of an index request.  For a bulk request, this waits while bulk
+     * work is restricted in favor of interactive work.  In the virtual execution mode, it also waits for a slot under
+     * the global concurrency limit.
+     *
+     * @param id The id.
+     * @param type The id type.
+     * @param priority The priority of the index request.
+     * @return The indexing result.
+     */
+    private IndexResult indexDocuments(
+            String id,
+            IdentifierType type,
+            IndexPriority priority) {
+        try (PriorityGovernor.Permit permit = priority == IndexPriority.BULK ? priorityGovernor.bulk() : null) {
+            return taskExecutor == null
+                    ? indexDocuments(id, type)
+                    : taskExecutor.limit(() -> indexDocuments(id, type));
+        }
+    }
+
     /**
      * Index a single document.
      *
@@ -208,26 +596,133 @@ public class SolrService {
      * @return The indexing result.
      */
     public IndexResult indexDocument(String mrn, DocumentReference document) {
+        return indexDocument(mrn, getSubjectId(document), document, null);
+    }
+
+    /**
+     * Returns the FHIR id of a document's subject once it has been resolved by the document service.
+     *
+     * @param document The document.
+     * @return The FHIR id of the subject.
+     */
+    private String getSubjectId(DocumentReference document) {
+        org.hl7.fhir.dstu3.model.Resource subject = document.getSubjectTarget();
+        return subject instanceof Patient
+                ? subject.getIdElement().getIdPart()
+                : document.getSubject().getReferenceElement().getIdPart();
+    }
+
+    /**
+     * Index a single document, skipping it if it is unchanged since it was last indexed.
+     *
+     * @param mrn MRN of the subject of the document.
+     * @param patientId FHIR id of the subject of the document.
+     * @param document The document to index.
+     * @param watermarks Previously recorded watermarks for the subject's documents.  If null, the watermark for the
+     *                   document is looked up individually.
+     * @return The indexing result.
+     */
+    private IndexResult indexDocument(
+            String mrn,
+            String patientId,
+            DocumentReference document,
+            Map<String, DocumentWatermark> watermarks) {
         IndexResult result = new IndexResult();
+        DocumentWatermark watermark = DocumentWatermark.forDocument(document, patientId);
+        DocumentWatermark recorded = !incrementalIndexing ? null : watermarks != null
+                ? watermarks.get(watermark.getDocumentId())
+                : databaseService.fetchDocumentWatermark(watermark.getDocumentId());
+
+        if (watermark.isSameVersion(recorded)) {
+            return result.skip();
+        }
+
         ContentDTO content = documentService.getDocumentContent(document);
 
-        if (content.isEmpty()) {
+        if (content == null || content.isEmpty()) {
             log.warn("Document has no content: " + document.getId());
             return result.success(false);
         }
 
+        watermark = watermark.withDigest(content.getDigest());
+
+        if (watermark.isSameContent(recorded) || (digestIndex != null
+                && digestIndex.matches(watermark.getDocumentId(), watermark.getDigest()))) {
+            recordWatermark(watermark);
+            return result.skip();
+        }
+
         Map<String, Object> map = new HashMap<>(content.getMap());
         map.put("MRN", mrn);
         map.put("SOURCE", "source4");
+        DocumentWatermark indexed = watermark;
 
         try {
-            indexDTO(new DocumentDTO(document, map), COLLECTION_DOCUMENTS);
+            indexDTO(new DocumentDTO(document, map), COLLECTION_DOCUMENTS, true, () -> {
+                recordWatermark(indexed);
+                summaryRefresher.observe(document.getCreated());
+            });
             return result.success(true);
         } catch (Exception e) {
             return result.success(false);
         }
     }
 
+    /**
+     * Queues a document watermark to be recorded, saving queued watermarks once a full batch has accumulated.
+     *
+     * @param watermark The watermark of an indexed document.
+     */
+    private void recordWatermark(DocumentWatermark watermark) {
+        boolean full;
+
+        if (digestIndex != null && !digestIndexFull) {
+            try {
+                digestIndex.put(watermark.getDocumentId(), watermark.getDigest());
+            } catch (IllegalStateException e) {
+                digestIndexFull = true;
+                log.error(e.getMessage() + ": no further documents will be added.  Increase"
+                        + " solr.digest.index.capacity to record more documents.");
+            }
+        }
+
+        if (!watermarksAvailable) {
+            return;
+        }
+
+        synchronized (pendingWatermarks) {
+            pendingWatermarks.add(watermark);
+            full = pendingWatermarks.size() >= batchSize;
+        }
+
+        if (full) {
+            saveWatermarks();
+        }
+    }
+
+    /**
+     * Saves all queued document watermarks.  A failure here is not fatal: the affected documents are simply
+     * reindexed the next time they are encountered.
+     */
+    private void saveWatermarks() {
+        List<DocumentWatermark> watermarks;
+
+        synchronized (pendingWatermarks) {
+            if (pendingWatermarks.isEmpty()) {
+                return;
+            }
+
+            watermarks = new ArrayList<>(pendingWatermarks);
+            pendingWatermarks.clear();
+        }
+
+        try {
+            databaseService.saveDocumentWatermarks(watermarks);
+        } catch (Exception e) {
+            log.error("Error saving " + watermarks.size() + " document watermark(s)", e);
+        }
+    }
+
     /**
      * Processes the index request associated with the given ID.
      *
@@ -249,32 +744,70 @@ public class SolrService {
     public IndexResult processRequest(IndexRequestDTO indexRequestDTO) {
         IndexResult result = new IndexResult();
 
-        try (IndexRequestDTO request = indexRequestDTO) {
+        try (IndexRequestDTO request = indexRequestDTO;
+             PriorityGovernor.Permit permit = request.getPriority() == IndexPriority.INTERACTIVE
+                     ? priorityGovernor.interactive() : null;
+             IndexContext context = IndexContext.begin(request, result)) {
             if (request.getStatus() != IndexRequestStatus.QUEUED) {
                 return result;
             }
 
             request.start();
-            IdentifierType identifierType = request.getIdentifierType();
 
-            for (String id : request.getIdentifiers(true)) {
-                try {
-                    if (request.getStatus() != IndexRequestStatus.RUNNING) {
-                        break;
-                    }
+            try {
+                IdentifierType identifierType = request.getIdentifierType();
+                CheckpointScheduler.Tracker tracker = checkpointScheduler.track();
+                databaseService.updateIndexRequest(request);
+                int remaining = request.getTotal() - request.getProcessed();
+                boolean split = taskExecutor == null ? chunkSize > 0 && remaining > chunkSize : remaining > 1;
+                Iterator<String> identifiers = split ? Collections.emptyIterator()
+                        : prefetching(request.iterateIdentifiers(true), identifierType);
+
+                if (split) {
+                    // In the virtual execution mode, each chunk holds a single identifier, so patients are prefetched
+                    // in batches as identifiers are claimed rather than for each chunk.
+                    int size = taskExecutor == null ? chunkSize : 1;
+                    ChunkedIndexRequest chunked = new ChunkedIndexRequest(request, result, size, tracker,
+                            taskExecutor == null ? UnaryOperator.identity() : ids -> prefetching(ids, identifierType));
+                    chunked.join();
+                    indexRequestQueue.share(chunked);
 
-                    if (result.getTotal() % 20 == 0) {
-                        databaseService.updateIndexRequest(request);
-                        commit();
+                    try {
+                        if (taskExecutor == null) {
+                            processChunks(chunked);
+                        } else {
+                            int workers = Math.min(remaining, taskExecutor.getConcurrency());
+                            taskExecutor.invokeAll(workers, () -> processChunks(chunked));
+                        }
+                    } finally {
+                        indexRequestQueue.unshare(chunked);
+                        chunked.leave();
+                        chunked.close();
                     }
+                }
+
+                while (identifiers.hasNext()) {
+                    String id = identifiers.next();
 
-                    result.combine(indexDocuments(id, identifierType));
-                    request.processed();
+                    try {
+                        if (request.getStatus() != IndexRequestStatus.RUNNING) {
+                            break;
+                        }
 
-                } catch (Exception e) {
-                    log.error(e.getMessage(), e);
-                    request.error(e.getMessage());
+                        result.combine(indexDocuments(id, identifierType, request.getPriority()));
+                        request.processed();
+
+                        if (tracker.processed()) {
+                            checkpoint(request, context);
+                        }
+
+                    } catch (Exception e) {
+                        log.error(e.getMessage(), e);
+                        request.error(e.getMessage());
+                    }
                 }
+            } finally {
+                requestCompleted();
             }
 
             if (request.getStatus() == IndexRequestStatus.RUNNING) {
@@ -282,38 +815,178 @@ public class SolrService {
             }
         }
 
-        commit();
         return result;
     }
 
     /**
-     * Commit all outstanding index transactions.
+     * Assists with a request that another daemon has split into chunks.
+     *
+     * @param chunked The chunked request.
      */
-    @PreDestroy
-    public void commit() {
-        try {
-            solrClient.commit(COLLECTION_DOCUMENTS);
-            solrClient.commit(COLLECTION_PATIENT);
-            solrClient.commit(COLLECTION_SLAVE);
-            updateIndexSummary();
-        } catch (Exception e) {
-            MiscUtil.rethrow(e);
+    public void assistRequest(ChunkedIndexRequest chunked) {
+        if (!chunked.join()) {
+            return;
+        }
+
+        try (IndexContext context = IndexContext.begin(chunked.getRequest(), chunked.getResult())) {
+            processChunks(chunked);
+            solrWriter.flush(context);
+        } finally {
+            chunked.leave();
+        }
+    }
+
+    /**
+     * Claims and processes chunks of a request until none remain or the request is no longer running.  Each chunk is
+     * processed under its own index context, so that a chunk is counted as processed only once its own documents have
+     * been sent, without waiting for documents that other daemons are still submitting.
+     *
+     * @param chunked The chunked request.
+     */
+    private void processChunks(ChunkedIndexRequest chunked) {
+        IndexRequestDTO request = chunked.getRequest();
+        IdentifierType identifierType = request.getIdentifierType();
+        ChunkedIndexRequest.Chunk chunk;
+
+        while ((chunk = chunked.claim()) != null) {
+            patientService.prefetch(chunk.getIdentifiers(), identifierType);
+
+            try (IndexContext context = IndexContext.begin(request, chunked.getResult())) {
+                try {
+                    for (String id : chunk.getIdentifiers()) {
+                        if (request.getStatus() != IndexRequestStatus.RUNNING) {
+                            return;
+                        }
+
+                        try {
+                            chunked.getResult().combine(indexDocuments(id, identifierType, request.getPriority()));
+                        } catch (Exception e) {
+                            log.error(e.getMessage(), e);
+                            request.error(e.getMessage());
+                            return;
+                        }
+                    }
+                } finally {
+                    solrWriter.flush(context);
+                }
+            }
+
+            if (chunked.processed(chunk)) {
+                checkpointScheduler.submit(request);
+            }
+        }
+    }
+
+    /**
+     * Wraps an iterator over a request's identifiers so that, each time it advances past a batch, the patients for the
+     * next batch are retrieved together rather than one at a time.
+     *
+     * @param identifiers The identifiers.
+     * @param identifierType The identifier type.
+     * @return An iterator over the same identifiers.
+     */
+    private Iterator<String> prefetching(
+            Iterator<String> identifiers,
+            IdentifierType identifierType) {
+        int batchSize = patientService.getBatchSize();
+
+        if (batchSize <= 1 || identifierType == IdentifierType.DOCID) {
+            return identifiers;
         }
+
+        return new Iterator<String>() {
+
+            private final Deque<String> batch = new ArrayDeque<>(batchSize);
+
+            @Override
+            public boolean hasNext() {
+                return !batch.isEmpty() || identifiers.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (batch.isEmpty()) {
+                    while (batch.size() < batchSize && identifiers.hasNext()) {
+                        batch.add(identifiers.next());
+                    }
+
+                    patientService.prefetch(batch, identifierType);
+                }
+
+                if (batch.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+
+                return batch.poll();
+            }
+
+        };
     }
 
     /**
-     * Index the object (patient or document) represented by the DTO.
+     * Schedules the progress of a running request to be persisted.  Documents for the identifiers already counted as
+     * processed are sent first, so that a request resumed from the checkpoint does not skip any.
+     *
+     * @param request The running request.
+     * @param context The index context whose documents must be sent.
+     */
+    private void checkpoint(
+            IndexRequestDTO request,
+            IndexContext context) {
+        solrWriter.flush(context);
+        checkpointScheduler.submit(request);
+    }
+
+    /**
+     * Waits until all updates submitted under the current index context have been sent, then applies the commit
+     * policy for a completed request.
+     */
+    public void requestCompleted() {
+        solrWriter.flush(IndexContext.current());
+        commitManager.requestCompleted();
+        saveWatermarks();
+    }
+
+    /**
+     * Sends all buffered updates, then commits all outstanding index transactions.
+     */
+    public void commit() {
+        solrWriter.flush();
+        commitManager.commit();
+        saveWatermarks();
+    }
+
+    /**
+     * Index the object (patient or document) represented by the DTO.  The resulting Solr document is handed to the
+     * Solr writer, which reports its outcome to the current index context.
+     *
+     * @param dto The DTO (patient or document).
+     * @param collection The document collection for the index.
+     * @param counted If true, the document is counted in the indexing result.
+     */
+    private void indexDTO(
+            BaseSolrDTO dto,
+            String collection,
+            boolean counted) {
+        indexDTO(dto, collection, counted, null);
+    }
+
+    /**
+     * Index the object (patient or document) represented by the DTO.  The resulting Solr document is handed to the
+     * Solr writer, which reports its outcome to the current index context.
      *
      * @param dto The DTO (patient or document).
      * @param collection The document collection for the index.
+     * @param counted If true, the document is counted in the indexing result.
+     * @param onSent If not null, invoked once Solr has accepted the document.
      */
     private void indexDTO(
             BaseSolrDTO dto,
-            String collection) {
+            String collection,
+            boolean counted,
+            Runnable onSent) {
         try {
-            UpdateRequest request = new UpdateRequest();
-            request.add(newSolrDocument(dto.getSolrMap()));
-            solrClient.request(request, collection);
+            solrWriter.add(collection, newSolrDocument(dto.getSolrMap()), counted, onSent);
         } catch (Exception e) {
             log.error("Error indexing entity for collection " + collection, e);
             MiscUtil.rethrow(e);
@@ -342,9 +1015,8 @@ public class SolrService {
      * @param patientDTO The patient to index.
      */
     public void indexPatient(PatientDTO patientDTO) {
-        indexDTO(patientDTO, COLLECTION_PATIENT);
-        indexDTO(patientDTO, COLLECTION_SLAVE);
-        commit();
+        indexDTO(patientDTO, COLLECTION_PATIENT, false);
+        indexDTO(patientDTO, COLLECTION_SLAVE, false);
     }
 
     /**
@@ -354,6 +1026,7 @@ public class SolrService {
      */
     private void deleteCollection(String collection) {
         try {
+            solrWriter.flush(collection);
             UpdateRequest request = new UpdateRequest();
             request.deleteByQuery("*:*");
             request.commit(solrClient, collection);
@@ -375,23 +1048,54 @@ public class SolrService {
      */
     public void deleteDocumentCollection() {
         deleteCollection(COLLECTION_DOCUMENTS);
+        summaryRefresher.invalidate();
+
+        synchronized (pendingWatermarks) {
+            pendingWatermarks.clear();
+        }
+
+        if (watermarksAvailable) {
+            databaseService.deleteDocumentWatermarks();
+        }
+
+        if (digestIndex != null) {
+            digestIndex.clear();
+            digestIndexFull = false;
+        }
+    }
+
+    /**
+     * Closes the local digest index, if any.
+     */
+    private void closeDigestIndex() {
+        if (digestIndex != null) {
+            try {
+                digestIndex.close();
+            } catch (IOException e) {
+                log.error("Error closing digest index", e);
+            }
+        }
     }
 
     /**
-     * Update the SOLR index summary.
+     * Update the SOLR index summary immediately.  Routine updates following a commit are performed in the background.
      */
     public void updateIndexSummary() {
+        summaryRefresher.refresh();
+    }
+
+    /**
+     * Returns the number of indexed patients.
+     */
+    long getPatientCount() {
         try {
             SolrQuery query = new SolrQuery();
             query.setRows(0);
             query.setQuery("*:*");
             SolrDocumentList results = solrClient.query(COLLECTION_PATIENT, query).getResults();
-            long patientCount = results.getNumFound();
-            Date start = getDateBound(true);
-            Date end = getDateBound(false);
-            databaseService.updateSolrIndexSummary(start, end, patientCount);
+            return results.getNumFound();
         } catch (Exception e) {
-            MiscUtil.rethrow(e);
+            return MiscUtil.rethrow(e);
         }
     }
 
@@ -399,9 +1103,9 @@ public class SolrService {
      * Returns the earliest or latest document date.
      *
      * @param earliest If true, return earliest, otherwise latest.
-     * @return The requested date (possibly null).
+     * @return The requested date (null if there are no documents).
      */
-    private Date getDateBound(boolean earliest) {
+    Date getDateBound(boolean earliest) {
         try {
             SolrQuery query = new SolrQuery();
             query.setQuery("*:*");
@@ -411,8 +1115,7 @@ public class SolrService {
             SolrDocumentList results = solrClient.query(COLLECTION_DOCUMENTS, query).getResults();
             return results.isEmpty() ? null : (Date) results.get(0).getFieldValue(RPT_DATE);
         } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            return null;
+            return MiscUtil.rethrow(e);
         }
     }
 
@@ -420,6 +1123,7 @@ public class SolrService {
      * Reset the SOLR index summary.
      */
     public void resetIndexSummary() {
+        summaryRefresher.invalidate();
         databaseService.updateSolrIndexSummary(null, null, 0);
     }
 
@@ -0,0 +1,230 @@
+package edu.utah.kmm.emerse.solr;
+
+import edu.utah.kmm.emerse.throttle.AdaptiveLimiter;
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands documents off to a bounded queue per collection that is drained by several sender threads, in the manner of
+ * SolrJ's concurrent update client.  Submitting threads return immediately unless the queue is full, in which case
+ * they block until space is available.
+ */
+public class StreamingSolrWriter extends BaseSolrWriter {
+
+    private static final Log log = LogFactory.getLog(StreamingSolrWriter.class);
+
+    /**
+     * The queue and sender threads for a single collection.
+     */
+    private class CollectionQueue {
+
+        private final String collection;
+
+        private final BlockingQueue<PendingDocument> queue;
+
+        private final List<Thread> senders = new ArrayList<>();
+
+        private int outstanding;
+
+        private CollectionQueue(String collection) {
+            this.collection = collection;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+
+            for (int i = 0; i < threadCount; i++) {
+                Thread sender = new Thread(this::send, "EMERSE-IT solr writer (" + collection + ") #" + (i + 1));
+                sender.setDaemon(true);
+                senders.add(sender);
+                sender.start();
+            }
+        }
+
+        /**
+         * Queues a document, blocking while the queue is full.
+         *
+         * @param pending The pending document.
+         */
+        private void put(PendingDocument pending) {
+            synchronized (this) {
+                outstanding++;
+            }
+
+            try {
+                queue.put(pending);
+            } catch (InterruptedException e) {
+                done(1);
+                Thread.currentThread().interrupt();
+                MiscUtil.rethrow(e);
+            }
+        }
+
+        /**
+         * Sender thread loop.  Removes as many queued documents as will fit in a batch and sends them.
+         */
+        private void send() {
+            while (!closed || !queue.isEmpty()) {
+                try {
+                    PendingDocument first = queue.poll(500, TimeUnit.MILLISECONDS);
+
+                    if (first != null) {
+                        List<PendingDocument> batch = new ArrayList<>();
+                        batch.add(first);
+                        queue.drainTo(batch, maxDocuments - 1);
+
+                        try {
+                            StreamingSolrWriter.this.send(collection, batch);
+                        } finally {
+                            done(batch.size());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    log.error("Unexpected error in Solr writer for collection " + collection, e);
+                }
+            }
+        }
+
+        /**
+         * Records that documents have been sent.
+         *
+         * @param count The number of documents sent.
+         */
+        private synchronized void done(int count) {
+            outstanding -= count;
+
+            if (outstanding <= 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until all queued documents have been sent.
+         */
+        private synchronized void await() {
+            try {
+                while (outstanding > 0) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                MiscUtil.rethrow(e);
+            }
+        }
+
+        /**
+         * Waits for sender threads to terminate.
+         */
+        private void join() {
+            for (Thread sender : senders) {
+                try {
+                    sender.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    private final Map<String, CollectionQueue> queues = new ConcurrentHashMap<>();
+
+    private final int maxDocuments;
+
+    private final int queueSize;
+
+    private final int threadCount;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a streaming writer.
+     *
+     * @param solrClient The Solr client used to send updates.
+     * @param commitManager The commit manager to be notified of updates.
+     * @param limiter The concurrency limiter for update requests.
+     * @param maxDocuments Maximum number of documents in a single update request.
+     * @param queueSize Maximum number of documents queued per collection.
+     * @param threadCount Number of sender threads per collection.
+     */
+    public StreamingSolrWriter(
+            SolrClient solrClient,
+            SolrCommitManager commitManager,
+            AdaptiveLimiter limiter,
+            int maxDocuments,
+            int queueSize,
+            int threadCount) {
+        super(solrClient, commitManager, limiter);
+        this.maxDocuments = Math.max(1, maxDocuments);
+        this.queueSize = Math.max(1, queueSize);
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    @Override
+    protected void enqueue(
+            String collection,
+            PendingDocument pending) {
+        if (closed) {
+            throw new IllegalStateException("Solr writer has been closed");
+        }
+
+        queues.computeIfAbsent(collection, CollectionQueue::new).put(pending);
+    }
+
+    /**
+     * Waits until all queued documents have been sent.
+     */
+    @Override
+    public void flush() {
+        queues.values().forEach(CollectionQueue::await);
+    }
+
+    /**
+     * Waits until all queued documents for a collection have been sent.
+     *
+     * @param collection The collection to flush.
+     */
+    @Override
+    public void flush(String collection) {
+        CollectionQueue queue = queues.get(collection);
+
+        if (queue != null) {
+            queue.await();
+        }
+    }
+
+    /**
+     * Waits until all documents submitted under an index context have been sent.  Unlike a full flush, this is not
+     * delayed by documents that other daemons continue to submit.
+     *
+     * @param context The index context (if null, all documents are flushed).
+     */
+    @Override
+    public void flush(IndexContext context) {
+        if (context == null) {
+            flush();
+        } else {
+            context.await();
+        }
+    }
+
+    /**
+     * Sends all queued documents and stops the sender threads.
+     */
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        queues.values().forEach(CollectionQueue::join);
+    }
+
+}
@@ -0,0 +1,266 @@
+package edu.utah.kmm.emerse.throttle;
+
+import edu.utah.kmm.emerse.util.MiscUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
+
+/**
+ * Limits the number of concurrent calls to a remote service, adjusting the limit to the service's behavior using
+ * additive increase / multiplicative decrease.  The recent latency of calls is compared with a baseline, which follows
+ * improvements in latency immediately but degradations only over a period of about a minute.
+ * While calls succeed and latency remains within a tolerance of the baseline, the limit grows by about one for every
+ * limit's worth of calls made while the limit was in use.  When a call fails due to overload, or latency rises above
+ * the tolerance, the limit is reduced by a fixed ratio (at most once per latency interval, so that a burst of slow
+ * responses to calls made under the old limit does not collapse it).  Callers block while the limit is reached.
+ */
+public class AdaptiveLimiter {
+
+    private static final double SHORT_SMOOTHING = 0.2;
+
+    private static final double BASELINE_WINDOW = 60e9;
+
+    private final String name;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private final double backoffRatio;
+
+    private double limit;
+
+    private int inFlight;
+
+    private double shortLatency;
+
+    private double baseline;
+
+    private long baselineUpdated;
+
+    private long lastDecrease;
+
+    private boolean decreased;
+
+    private long calls;
+
+    private long drops;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param name The name of the limited service.
+     * @param initialLimit The initial limit.
+     * @param minLimit The minimum limit.
+     * @param maxLimit The maximum limit.
+     * @param tolerance The ratio of recent to baseline latency above which the limit is reduced.
+     * @param backoffRatio The ratio by which the limit is reduced.
+     */
+    public AdaptiveLimiter(
+            String name,
+            int initialLimit,
+            int minLimit,
+            int maxLimit,
+            double tolerance,
+            double backoffRatio) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.tolerance = Math.max(1.0, tolerance);
+        this.backoffRatio = Math.min(Math.max(backoffRatio, 0.1), 0.95);
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+    }
+
+    /**
+     * Performs a call under the limit.  Every exception is treated as a sign of overload.
+     *
+     * @param task The call.
+     * @param <T> The result type.
+     * @return The result of the call.
+     */
+    public <T> T call(Callable<T> task) {
+        return call(task, e -> true);
+    }
+
+    /**
+     * Performs a call under the limit.
+     *
+     * @param task The call.
+     * @param overload Returns true if an exception thrown by the call indicates that the service is overloaded.
+     *                 Other exceptions (e.g., a resource not found) do not affect the limit.
+     * @param <T> The result type.
+     * @return The result of the call.
+     */
+    public <T> T call(
+            Callable<T> task,
+            Predicate<Exception> overload) {
+        return call(task, overload, () -> {
+        });
+    }
+
+    /**
+     * Performs a call under the limit, first waiting for admission once a slot under the limit has been obtained (e.g.,
+     * for a rate limit token).  Only the call itself is timed, so the wait for admission does not count as latency.
+     *
+     * @param task The call.
+     * @param overload Returns true if an exception thrown by the call indicates that the service is overloaded.
+     *                 Other exceptions (e.g., a resource not found) do not affect the limit.
+     * @param admission Waits until the call may be made.
+     * @param <T> The result type.
+     * @return The result of the call.
+     */
+    public <T> T call(
+            Callable<T> task,
+            Predicate<Exception> overload,
+            Runnable admission) {
+        acquire();
+
+        try {
+            admission.run();
+        } catch (RuntimeException | Error e) {
+            abandon();
+            throw e;
+        }
+
+        long start = System.nanoTime();
+        boolean dropped = false;
+
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            dropped = overload.test(e);
+            throw e;
+        } catch (Exception e) {
+            dropped = overload.test(e);
+            return MiscUtil.rethrow(e);
+        } finally {
+            release(System.nanoTime() - start, dropped);
+        }
+    }
+
+    /**
+     * Waits until a call may be made.
+     */
+    private synchronized void acquire() {
+        try {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            MiscUtil.rethrow(e);
+        }
+
+        inFlight++;
+    }
+
+    /**
+     * Gives up a slot without making a call.
+     */
+    private synchronized void abandon() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Records the outcome of a call and adjusts the limit.
+     *
+     * @param latency The latency of the call (in ns).
+     * @param dropped True if the call failed due to overload.
+     */
+    private synchronized void release(
+            long latency,
+            boolean dropped) {
+        boolean saturated = inFlight >= (int) limit / 2;
+        inFlight--;
+        calls++;
+        long now = System.nanoTime();
+
+        if (dropped) {
+            drops++;
+            decrease(now);
+        } else {
+            shortLatency = shortLatency == 0 ? latency : shortLatency + (latency - shortLatency) * SHORT_SMOOTHING;
+            updateBaseline(now);
+
+            if (shortLatency > baseline * tolerance) {
+                decrease(now);
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Moves the baseline towards the recent latency.
+     *
+     * @param now The current time (in ns).
+     */
+    private void updateBaseline(long now) {
+        if (baseline == 0 || shortLatency < baseline) {
+            baseline = shortLatency;
+        } else {
+            baseline += (shortLatency - baseline) * Math.min(1.0, (now - baselineUpdated) / BASELINE_WINDOW);
+        }
+
+        baselineUpdated = now;
+    }
+
+    /**
+     * Reduces the limit, unless it was reduced within the last latency interval.
+     *
+     * @param now The current time (in ns).
+     */
+    private void decrease(long now) {
+        if (!decreased || now - lastDecrease >= shortLatency) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+            lastDecrease = now;
+            decreased = true;
+        }
+    }
+
+    /**
+     * Returns the name of the limited service.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the number of calls in progress.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the state of the limiter for reporting.
+     */
+    public synchronized Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("name", name);
+        status.put("limit", (int) limit);
+        status.put("minLimit", minLimit);
+        status.put("maxLimit", maxLimit);
+        status.put("inFlight", inFlight);
+        status.put("latency", Math.round(shortLatency / 1000000.0));
+        status.put("baseline", Math.round(baseline / 1000000.0));
+        status.put("calls", calls);
+        status.put("drops", drops);
+        return status;
+    }
+
+}
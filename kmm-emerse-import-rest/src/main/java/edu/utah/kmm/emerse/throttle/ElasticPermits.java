@@ -0,0 +1,103 @@
+package edu.utah.kmm.emerse.throttle;
+
+import edu.utah.kmm.emerse.util.MiscUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of workers making calls to a remote service to the current limit of the service's adaptive
+ * concurrency limiter, so that the number of workers grows and shrinks with the limit.  Without this, a fixed number of
+ * workers either leaves the limiter's headroom unused (and so the limit never grows), or keeps surplus workers blocked
+ * inside the limiter.  A configured maximum bounds the number of workers regardless of the limit.
+ * <p>
+ * Since the limit changes only as calls complete, waiting workers recheck it periodically as well as whenever a permit
+ * is released.
+ */
+public class ElasticPermits {
+
+    private static final long RECHECK_INTERVAL = 100;
+
+    private final String name;
+
+    private final AdaptiveLimiter limiter;
+
+    private final int maxPermits;
+
+    private int inUse;
+
+    /**
+     * Creates a set of permits.
+     *
+     * @param name The name of the workers.
+     * @param limiter The limiter from which the number of permits is taken.
+     * @param maxPermits The maximum number of permits.
+     */
+    public ElasticPermits(
+            String name,
+            AdaptiveLimiter limiter,
+            int maxPermits) {
+        this.name = name;
+        this.limiter = limiter;
+        this.maxPermits = Math.max(1, maxPermits);
+    }
+
+    /**
+     * Obtains a permit, waiting while all are in use.
+     */
+    public synchronized void acquire() {
+        try {
+            while (inUse >= getPermits()) {
+                wait(RECHECK_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            MiscUtil.rethrow(e);
+        }
+
+        inUse++;
+    }
+
+    /**
+     * Obtains a permit if one is available.  Never waits.
+     *
+     * @return True if a permit was obtained.
+     */
+    public synchronized boolean tryAcquire() {
+        if (inUse >= getPermits()) {
+            return false;
+        }
+
+        inUse++;
+        return true;
+    }
+
+    /**
+     * Releases a permit.
+     */
+    public synchronized void release() {
+        inUse--;
+        notifyAll();
+    }
+
+    /**
+     * Returns the current number of permits: the limiter's limit, bounded by the configured maximum.
+     */
+    public int getPermits() {
+        return Math.min(maxPermits, limiter.getLimit());
+    }
+
+    /**
+     * Returns the state of the permits for reporting.
+     */
+    public synchronized Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("name", name);
+        status.put("limiter", limiter.getName());
+        status.put("permits", getPermits());
+        status.put("maxPermits", maxPermits);
+        status.put("inUse", inUse);
+        return status;
+    }
+
+}
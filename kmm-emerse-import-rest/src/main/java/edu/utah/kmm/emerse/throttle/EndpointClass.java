@@ -0,0 +1,11 @@
+package edu.utah.kmm.emerse.throttle;
+
+/**
+ * Classes of outbound calls that are rate limited independently.
+ */
+public enum EndpointClass {
+    FHIR_READ,
+    FHIR_SEARCH,
+    FHIR_BINARY,
+    EPIC
+}
@@ -0,0 +1,188 @@
+package edu.utah.kmm.emerse.throttle;
+
+import edu.utah.kmm.emerse.util.MiscUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+/**
+ * Process-wide rate limits for outbound calls, with a separate token bucket for each endpoint class.  When a remote
+ * service rejects a call because it is being throttled, the bucket for that endpoint class is paused for the period
+ * the service requested (its Retry-After header), and the call is retried.
+ */
+public class RateLimiters {
+
+    private static final Log log = LogFactory.getLog(RateLimiters.class);
+
+    /**
+     * An outbound call that takes its rate limit token itself, so that it may first wait for other resources (such as
+     * a concurrency slot) without holding a token.
+     *
+     * @param <T> The result type.
+     */
+    public interface GatedCall<T> {
+
+        /**
+         * Performs the call.
+         *
+         * @param token Waits for a rate limit token.  Must be run once before the call is made.
+         * @return The result of the call.
+         */
+        T call(Runnable token) throws Exception;
+
+    }
+
+    @Value("${throttle.fhir.read.rate:0}")
+    private double fhirReadRate;
+
+    @Value("${throttle.fhir.read.burst:1}")
+    private int fhirReadBurst;
+
+    @Value("${throttle.fhir.search.rate:0}")
+    private double fhirSearchRate;
+
+    @Value("${throttle.fhir.search.burst:1}")
+    private int fhirSearchBurst;
+
+    @Value("${throttle.fhir.binary.rate:0}")
+    private double fhirBinaryRate;
+
+    @Value("${throttle.fhir.binary.burst:1}")
+    private int fhirBinaryBurst;
+
+    @Value("${throttle.epic.rate:0}")
+    private double epicRate;
+
+    @Value("${throttle.epic.burst:1}")
+    private int epicBurst;
+
+    @Value("${throttle.retry.max:3}")
+    private int maxRetries;
+
+    @Value("${throttle.retry.default:1000}")
+    private long defaultRetryAfter;
+
+    private final Map<EndpointClass, TokenBucket> buckets = new EnumMap<>(EndpointClass.class);
+
+    @PostConstruct
+    private void init() {
+        add(new TokenBucket(EndpointClass.FHIR_READ, fhirReadRate, fhirReadBurst));
+        add(new TokenBucket(EndpointClass.FHIR_SEARCH, fhirSearchRate, fhirSearchBurst));
+        add(new TokenBucket(EndpointClass.FHIR_BINARY, fhirBinaryRate, fhirBinaryBurst));
+        add(new TokenBucket(EndpointClass.EPIC, epicRate, epicBurst));
+    }
+
+    private void add(TokenBucket bucket) {
+        buckets.put(bucket.getEndpointClass(), bucket);
+
+        if (bucket.isLimited()) {
+            log.info("Rate limit for " + bucket.getEndpointClass() + ": " + bucket.getRate() + " calls/s");
+        }
+    }
+
+    /**
+     * Performs an outbound call under the rate limit for its endpoint class.
+     *
+     * @param endpointClass The endpoint class.
+     * @param task The call.
+     * @param retryAfter Returns the period (in ms) after which a call that failed with the given exception may be
+     *                   retried, zero if the service did not say, or null if the failure was not due to throttling.
+     * @param <T> The result type.
+     * @return The result of the call.
+     */
+    public <T> T call(
+            EndpointClass endpointClass,
+            Callable<T> task,
+            Function<Exception, Long> retryAfter) {
+        return callGated(endpointClass, token -> {
+            token.run();
+            return task.call();
+        }, retryAfter);
+    }
+
+    /**
+     * Performs an outbound call under the rate limit for its endpoint class, where the call takes its own token.
+     *
+     * @param endpointClass The endpoint class.
+     * @param task The call.
+     * @param retryAfter Returns the period (in ms) after which a call that failed with the given exception may be
+     *                   retried, zero if the service did not say, or null if the failure was not due to throttling.
+     * @param <T> The result type.
+     * @return The result of the call.
+     */
+    public <T> T callGated(
+            EndpointClass endpointClass,
+            GatedCall<T> task,
+            Function<Exception, Long> retryAfter) {
+        TokenBucket bucket = buckets.get(endpointClass);
+
+        for (int attempt = 0; ; attempt++) {
+            Exception failure;
+
+            try {
+                return task.call(bucket::acquire);
+            } catch (Exception e) {
+                failure = e;
+            }
+
+            Long delay = attempt < maxRetries ? retryAfter.apply(failure) : null;
+
+            if (delay == null) {
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+
+                return MiscUtil.rethrow(failure);
+            }
+
+            delay = delay > 0 ? delay : defaultRetryAfter;
+            log.warn("Throttled by remote service (" + endpointClass + "); retrying in " + delay + " ms");
+            bucket.pause(delay);
+        }
+    }
+
+    /**
+     * Parses the value of a Retry-After header, which may be a number of seconds or an HTTP date.
+     *
+     * @param value The header value (may be null).
+     * @return The period (in ms) to wait, or zero if the value is missing or invalid.
+     */
+    public static long parseRetryAfter(String value) {
+        value = StringUtils.trimToNull(value);
+
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return StringUtils.isNumeric(value)
+                    ? Long.parseLong(value) * 1000
+                    : Math.max(0, Duration.between(ZonedDateTime.now(),
+                    ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)).toMillis());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the state of each token bucket for reporting.
+     */
+    public List<Map<String, Object>> getStatus() {
+        List<Map<String, Object>> status = new ArrayList<>();
+        buckets.values().forEach(bucket -> status.add(bucket.getStatus()));
+        return status;
+    }
+
+}
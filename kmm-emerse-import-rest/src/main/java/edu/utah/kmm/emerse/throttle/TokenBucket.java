@@ -0,0 +1,163 @@
+package edu.utah.kmm.emerse.throttle;
+
+import edu.utah.kmm.emerse.util.MiscUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that spaces calls evenly at a fixed rate, permitting a burst of calls after a period of inactivity.
+ * Each caller reserves the next free time slot and then sleeps until it arrives, so callers proceed in the order in
+ * which they arrived and throughput never exceeds the configured rate.  The bucket may also be paused (e.g., when the
+ * remote service asks for calls to be deferred), in which case waiting callers resume at the configured rate once
+ * the pause has elapsed, rather than all at once.
+ */
+public class TokenBucket {
+
+    private final EndpointClass endpointClass;
+
+    private final double rate;
+
+    private final long interval;
+
+    private final long burstWindow;
+
+    private long next;
+
+    private long pausedUntil;
+
+    private long calls;
+
+    private long pauses;
+
+    private long waited;
+
+    /**
+     * Creates a token bucket.
+     *
+     * @param endpointClass The class of calls that are limited.
+     * @param rate Maximum number of calls per second.  If not positive, calls are not limited.
+     * @param burst Maximum number of calls that may be made at once after a period of inactivity.
+     */
+    public TokenBucket(
+            EndpointClass endpointClass,
+            double rate,
+            int burst) {
+        this.endpointClass = endpointClass;
+        this.rate = rate;
+        this.interval = rate <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.burstWindow = interval * (Math.max(1, burst) - 1);
+        this.next = this.pausedUntil = System.nanoTime() - burstWindow - 1;
+    }
+
+    /**
+     * Returns the class of calls that are limited.
+     */
+    public EndpointClass getEndpointClass() {
+        return endpointClass;
+    }
+
+    /**
+     * Returns the maximum number of calls per second (not positive if calls are not limited).
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns true if calls are limited.
+     */
+    public boolean isLimited() {
+        return interval > 0;
+    }
+
+    /**
+     * Waits until a call may be made.
+     */
+    public void acquire() {
+        long slot = reserve();
+
+        while (slot != 0) {
+            long delay = slot - System.nanoTime();
+
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    MiscUtil.rethrow(e);
+                }
+            }
+
+            slot = reconfirm(slot);
+        }
+    }
+
+    /**
+     * Reserves the next free time slot.
+     *
+     * @return The time (in ns) at which the slot arrives, or zero if the call may be made at once.
+     */
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        calls++;
+
+        if (interval == 0 && pausedUntil - now <= 0) {
+            return 0;
+        }
+
+        long earliest = now - burstWindow;
+        earliest = pausedUntil - earliest > 0 ? pausedUntil : earliest;
+        next = earliest - next > 0 ? earliest : next;
+        long slot = next;
+        next += interval;
+        waited += Math.max(0, slot - now);
+        return slot == 0 ? 1 : slot;
+    }
+
+    /**
+     * Confirms a reserved slot once it has arrived.  If the bucket was paused after the slot was reserved, and the
+     * slot falls within the pause, a new slot is reserved.
+     *
+     * @param slot The reserved slot.
+     * @return Zero if the slot is confirmed, or the time at which the new slot arrives.
+     */
+    private synchronized long reconfirm(long slot) {
+        if (pausedUntil - slot > 0) {
+            calls--;
+            return reserve();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Defers all calls until a period has elapsed.
+     *
+     * @param millis The period (in ms).
+     */
+    public synchronized void pause(long millis) {
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+
+        if (until - pausedUntil > 0) {
+            pausedUntil = until;
+        }
+
+        pauses++;
+    }
+
+    /**
+     * Returns the state of the bucket for reporting.
+     */
+    public synchronized Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("name", endpointClass.name());
+        status.put("rate", rate <= 0 ? null : rate);
+        status.put("calls", calls);
+        status.put("pauses", pauses);
+        status.put("waited", TimeUnit.NANOSECONDS.toMillis(waited));
+        return status;
+    }
+
+}
@@ -0,0 +1,137 @@
+package edu.utah.kmm.emerse.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive long values using open addressing with linear probing.  Requires far less memory than a set of
+ * boxed values (16 bytes or less per entry at the maximum load factor).
+ */
+public class LongHashSet {
+
+    private static final double MAX_LOAD = 0.5;
+
+    private long[] table;
+
+    private int size;
+
+    private boolean containsZero;
+
+    public LongHashSet() {
+        this(1024);
+    }
+
+    /**
+     * Creates a set.
+     *
+     * @param expectedSize The expected number of entries.
+     */
+    public LongHashSet(int expectedSize) {
+        table = new long[tableSize(expectedSize)];
+    }
+
+    /**
+     * Adds a value to the set.
+     *
+     * @param value The value.
+     * @return True if the value was not already present.
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            boolean added = !containsZero;
+            containsZero = true;
+            size += added ? 1 : 0;
+            return added;
+        }
+
+        if (size + 1 > table.length * MAX_LOAD) {
+            rehash(table.length * 2);
+        }
+
+        if (insert(table, value)) {
+            size++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if the set contains a value.
+     *
+     * @param value The value.
+     * @return True if the value is present.
+     */
+    public boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+
+        int mask = table.length - 1;
+
+        for (int i = mix(value) & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == value) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        containsZero = false;
+        size = 0;
+    }
+
+    private static boolean insert(
+            long[] table,
+            long value) {
+        int mask = table.length - 1;
+        int i = mix(value) & mask;
+
+        while (table[i] != 0) {
+            if (table[i] == value) {
+                return false;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        table[i] = value;
+        return true;
+    }
+
+    private void rehash(int newSize) {
+        long[] newTable = new long[newSize];
+
+        for (long value : table) {
+            if (value != 0) {
+                insert(newTable, value);
+            }
+        }
+
+        table = newTable;
+    }
+
+    private static int mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    private static int tableSize(int expectedSize) {
+        int size = 16;
+
+        while (size * MAX_LOAD < expectedSize) {
+            size <<= 1;
+        }
+
+        return size;
+    }
+
+}
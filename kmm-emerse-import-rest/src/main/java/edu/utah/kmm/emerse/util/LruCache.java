@@ -0,0 +1,77 @@
+package edu.utah.kmm.emerse.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe map of bounded size that evicts its least recently used entry when full.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class LruCache<K, V> {
+
+    private final int maxSize;
+
+    private final Map<K, V> map;
+
+    private long evictions;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize The maximum number of entries.  If not positive, nothing is cached.
+     */
+    public LruCache(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                boolean evict = size() > LruCache.this.maxSize;
+
+                if (evict) {
+                    evictions++;
+                }
+
+                return evict;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(
+            K key,
+            V value) {
+        if (maxSize > 0) {
+            map.put(key, value);
+        }
+    }
+
+    public synchronized V remove(K key) {
+        return map.remove(key);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized boolean isFull() {
+        return map.size() >= maxSize;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+}
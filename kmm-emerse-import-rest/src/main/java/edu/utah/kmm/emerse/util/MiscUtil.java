@@ -69,6 +69,28 @@ public class MiscUtil {
         throw toUnchecked(e);
     }
 
+    /**
+     * Computes a well-distributed 64-bit hash of a character sequence (FNV-1a followed by a finalizing mix).
+     *
+     * @param value The character sequence.
+     * @return The hash.
+     */
+    public static long hash64(CharSequence value) {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     private MiscUtil() {
     }
 
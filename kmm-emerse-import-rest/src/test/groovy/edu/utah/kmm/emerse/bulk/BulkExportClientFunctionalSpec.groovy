@@ -0,0 +1,157 @@
+package edu.utah.kmm.emerse.bulk
+
+import ca.uhn.fhir.context.FhirContext
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import org.hl7.fhir.dstu3.model.DocumentReference
+import org.hl7.fhir.dstu3.model.Patient
+import spock.lang.Specification
+
+import java.util.zip.GZIPOutputStream
+
+class BulkExportClientFunctionalSpec extends Specification {
+
+    private static final String PATIENTS = '{"resourceType":"Patient","id":"p1"}\n' +
+            '\n' +
+            '{"resourceType":"Patient","id":"p2"}\n' +
+            'not json\n'
+
+    private static final String DOCUMENTS = '{"resourceType":"DocumentReference","id":"d1","subject":{"reference":"Patient/p1"}}\n' +
+            '{"resourceType":"Observation","id":"o1"}\n' +
+            '{"resourceType":"DocumentReference","id":"d2","subject":{"reference":"Patient/p2"}}\n'
+
+    private HttpServer server
+
+    private String base
+
+    private int polls
+
+    private List<String> requests = Collections.synchronizedList([])
+
+    def setup() {
+        server = HttpServer.create(new InetSocketAddress('localhost', 0), 0)
+        base = "http://localhost:${server.address.port}"
+        server.createContext('/fhir/Group/cohort/$export') { HttpExchange exchange ->
+            record(exchange)
+            exchange.responseHeaders.add('Content-Location', "${base}/status/1")
+            respond(exchange, 202, null)
+        }
+        server.createContext('/fhir/Patient/$export') { HttpExchange exchange ->
+            record(exchange)
+            respond(exchange, 400, '{"resourceType":"OperationOutcome"}')
+        }
+        server.createContext('/status/1') { HttpExchange exchange ->
+            record(exchange)
+
+            if (exchange.requestMethod == 'DELETE') {
+                respond(exchange, 202, null)
+            } else if (++polls == 1) {
+                exchange.responseHeaders.add('Retry-After', '0')
+                respond(exchange, 429, null)
+            } else if (polls < 4) {
+                exchange.responseHeaders.add('X-Progress', "poll ${polls}")
+                respond(exchange, 202, null)
+            } else {
+                respond(exchange, 200, """{"transactionTime":"2020-01-01T00:00:00Z","requiresAccessToken":false,
+                    "output":[{"type":"Patient","url":"${base}/files/patients.ndjson"},
+                    {"type":"DocumentReference","url":"${base}/files/documents.ndjson"}],"error":[]}""")
+            }
+        }
+        server.createContext('/files/patients.ndjson') { HttpExchange exchange ->
+            record(exchange)
+            respond(exchange, 200, PATIENTS)
+        }
+        server.createContext('/files/documents.ndjson') { HttpExchange exchange ->
+            record(exchange)
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+            new GZIPOutputStream(bytes).withStream { it.write(DOCUMENTS.getBytes('UTF-8')) }
+            exchange.responseHeaders.add('Content-Encoding', 'gzip')
+            exchange.sendResponseHeaders(200, bytes.size())
+            exchange.responseBody.write(bytes.toByteArray())
+            exchange.close()
+        }
+        server.start()
+    }
+
+    def cleanup() {
+        server.stop(0)
+    }
+
+    private void record(HttpExchange exchange) {
+        requests << "${exchange.requestMethod} ${exchange.requestURI.path} ${exchange.requestHeaders.getFirst('Authorization')}"
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) {
+        byte[] bytes = body?.getBytes('UTF-8')
+        exchange.sendResponseHeaders(status, bytes == null ? -1 : bytes.length)
+
+        if (bytes != null) {
+            exchange.responseBody.write(bytes)
+        }
+
+        exchange.close()
+    }
+
+    private BulkExportClient newClient() {
+        new BulkExportClient("${base}/fhir", { -> [Authorization: 'Bearer token'] }, 5000, 10, 10000)
+    }
+
+    def 'export is started, polled to completion and streamed'() {
+        given:
+        BulkExportClient client = newClient()
+        FhirContext fhirContext = FhirContext.forDstu3()
+
+        when:
+        String statusUrl = client.kickoff(BulkExportClient.ExportLevel.GROUP, 'cohort', ['Patient', 'DocumentReference'], null)
+        List<BulkExportClient.OutputFile> files = client.await(statusUrl)
+
+        then:
+        statusUrl == "${base}/status/1" as String
+        polls == 4
+        files*.type == ['Patient', 'DocumentReference']
+
+        when:
+        NdjsonReader<Patient> patients = new NdjsonReader<>(client.read(files[0]), fhirContext.newJsonParser(), Patient.class)
+        List<String> patientIds = patients.collect { it.idElement.idPart }
+        patients.close()
+        NdjsonReader<DocumentReference> documents = new NdjsonReader<>(client.read(files[1]), fhirContext.newJsonParser(), DocumentReference.class)
+        List<String> subjects = documents.collect { it.subject.reference }
+        documents.close()
+
+        then:
+        patientIds == ['p1', 'p2']
+        patients.skipped == 1
+        subjects == ['Patient/p1', 'Patient/p2']
+        documents.skipped == 1
+
+        when:
+        client.delete(statusUrl)
+
+        then:
+        requests.findAll { it.startsWith('GET /files/') }.every { it.endsWith('null') }
+        requests.findAll { !it.startsWith('GET /files/') }.every { it.endsWith('Bearer token') }
+        requests.last() == 'DELETE /status/1 Bearer token'
+    }
+
+    def 'failed kick-off reports the server response'() {
+        given:
+        BulkExportClient client = newClient()
+
+        when:
+        client.kickoff(BulkExportClient.ExportLevel.PATIENT, null, ['Patient'], '2020-01-01T00:00:00Z')
+
+        then:
+        IllegalStateException e = thrown()
+        e.message.contains('400')
+        e.message.contains('OperationOutcome')
+    }
+
+    def 'group-level export requires a group id'() {
+        when:
+        newClient().kickoff(BulkExportClient.ExportLevel.GROUP, null, ['Patient'], null)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+}
@@ -0,0 +1,75 @@
+package edu.utah.kmm.emerse.database
+
+import spock.lang.Specification
+
+import java.util.function.IntFunction
+
+class IdentifierChunksSpec extends Specification {
+
+    private static List<String> identifiers(int count) {
+        (0..<count).collect { "ID${it}".toString() }
+    }
+
+    def 'chunks survive a round trip through compression'() {
+        given:
+        List<String> identifiers = identifiers(IdentifierChunks.CHUNK_SIZE) + ['Ünïcödé', 'a b c']
+
+        when:
+        byte[] encoded = IdentifierChunks.encode(identifiers)
+
+        then:
+        encoded.length < identifiers.sum { it.length() }
+        IdentifierChunks.decode(encoded) == identifiers
+    }
+
+    def 'reader starts at the requested position and loads only the chunks it needs'() {
+        given:
+        List<String> identifiers = identifiers(IdentifierChunks.CHUNK_SIZE * 2 + 500)
+        List<byte[]> chunks = identifiers.collate(IdentifierChunks.CHUNK_SIZE).collect { IdentifierChunks.encode(it) }
+        List<Integer> loaded = []
+        IntFunction<List<String>> loader = { int chunkNo ->
+            loaded << chunkNo
+            chunkNo < chunks.size() ? IdentifierChunks.decode(chunks[chunkNo]) : null
+        }
+
+        when:
+        List<String> read = new IdentifierChunks.Reader(loader, fromIndex).collect()
+
+        then:
+        read == identifiers.subList(fromIndex, identifiers.size())
+        loaded.first() == fromIndex.intdiv(IdentifierChunks.CHUNK_SIZE)
+
+        where:
+        fromIndex << [0, 1, 9999, 10000, 12345, 20499]
+    }
+
+    def 'reader is empty when started at or beyond the end'() {
+        given:
+        byte[] chunk = IdentifierChunks.encode(identifiers(10))
+        IntFunction<List<String>> loader = { int chunkNo -> chunkNo == 0 ? IdentifierChunks.decode(chunk) : null }
+
+        expect:
+        !new IdentifierChunks.Reader(loader, 10).hasNext()
+        !new IdentifierChunks.Reader(loader, IdentifierChunks.CHUNK_SIZE).hasNext()
+    }
+
+    def 'reader does not load a chunk until an identifier is requested'() {
+        given:
+        int loads = 0
+        IntFunction<List<String>> loader = { int chunkNo -> loads++; null }
+
+        when:
+        IdentifierChunks.Reader reader = new IdentifierChunks.Reader(loader, 0)
+
+        then:
+        loads == 0
+
+        when:
+        reader.next()
+
+        then:
+        thrown(NoSuchElementException)
+        loads == 1
+    }
+
+}
@@ -0,0 +1,62 @@
+package edu.utah.kmm.emerse.fhir
+
+import ca.uhn.fhir.context.FhirContext
+import org.hl7.fhir.dstu3.model.Enumerations
+import org.hl7.fhir.dstu3.model.Patient
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * Verifies that serialization produces the same results as a parser from the shared context, that resources are
+ * deserialized from a request stream, and that each use gets its own parser.
+ */
+class FhirServiceSerializationFunctionalSpec extends Specification {
+
+    @Shared
+    FhirContext fhirContext = FhirContext.forDstu3()
+
+    FhirService fhirService
+
+    Patient patient
+
+    def setup() {
+        fhirService = new FhirService()
+        fhirService.fhirContext = fhirContext
+        patient = new Patient()
+        patient.id = 'Patient/12345'
+        patient.gender = Enumerations.AdministrativeGender.FEMALE
+        patient.birthDate = new Date(0)
+        (1..5).each { i ->
+            patient.addIdentifier().setSystem("urn:oid:1.2.3.${i}").setValue("MRN${i}0000${i}")
+            patient.addName().setFamily("Family${i}").addGiven("Given${i}").addGiven("Middle${i}")
+            patient.addAddress().addLine("${i} Main Street").setCity('Salt Lake City').setState('UT').setPostalCode('84101')
+            patient.addTelecom().setValue("801-555-000${i}")
+        }
+    }
+
+    def 'serialize matches a parser from the shared context'() {
+        expect:
+        fhirService.serialize(patient) == fhirContext.newJsonParser().encodeResourceToString(patient)
+        fhirService.serialize(null) == null
+    }
+
+    def 'deserialize from request'() {
+        given:
+        byte[] body = fhirService.serialize(patient).getBytes(StandardCharsets.UTF_8)
+
+        when:
+        Patient parsed = fhirService.deserialize(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8), Patient.class)
+
+        then:
+        parsed.identifier*.value == patient.identifier*.value
+        parsed.nameFirstRep.family == 'Family1'
+    }
+
+    def 'each use gets its own parser'() {
+        expect:
+        !fhirService.newJsonParser().is(fhirService.newJsonParser())
+    }
+
+}
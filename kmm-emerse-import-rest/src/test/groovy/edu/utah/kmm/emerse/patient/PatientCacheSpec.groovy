@@ -0,0 +1,159 @@
+package edu.utah.kmm.emerse.patient
+
+import org.hl7.fhir.dstu3.model.Patient
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Function
+
+class PatientCacheSpec extends Specification {
+
+    private static final Function<Patient, String> MRN = { Patient patient -> patient.identifierFirstRep.value }
+
+    private static Patient newPatient(String id, String mrn) {
+        Patient patient = new Patient()
+        patient.id = "Patient/${id}"
+        patient.addIdentifier().setSystem('urn:mrn').setValue(mrn)
+        patient.addName().setFamily('Family')
+        patient
+    }
+
+    def 'patients are found by FHIR id and by MRN'() {
+        given:
+        PatientCache cache = new PatientCache(10, 0, MRN)
+        cache.put(newPatient('123', 'MRN123'))
+
+        expect:
+        cache.containsId('123')
+        cache.containsId('Patient/123')
+        cache.containsMrn('MRN123')
+        cache.getById('123', { throw new AssertionError('not cached') }).idElement.idPart == '123'
+        cache.getByMrn('MRN123', { throw new AssertionError('not cached') }).idElement.idPart == '123'
+        cache.status.hits == 2
+    }
+
+    def 'patients expire once the TTL has elapsed'() {
+        given:
+        PatientCache cache = new PatientCache(10, 100, MRN)
+        cache.put(newPatient('123', 'MRN123'))
+        int loads = 0
+
+        when:
+        Thread.sleep(200)
+
+        then:
+        !cache.containsId('123')
+        !cache.containsMrn('MRN123')
+
+        when:
+        Patient patient = cache.getById('123', { loads++; newPatient('123', 'MRN123') })
+
+        then:
+        patient != null
+        loads == 1
+        cache.status.expirations == 1
+        cache.containsId('123')
+    }
+
+    def 'patients do not expire without a TTL'() {
+        given:
+        PatientCache cache = new PatientCache(10, 0, MRN)
+        cache.put(newPatient('123', 'MRN123'))
+
+        when:
+        Thread.sleep(50)
+
+        then:
+        cache.containsId('123')
+    }
+
+    def 'the least recently used patient is evicted when full'() {
+        given:
+        PatientCache cache = new PatientCache(2, 0, MRN)
+        cache.put(newPatient('1', 'MRN1'))
+        cache.put(newPatient('2', 'MRN2'))
+        cache.getById('1', { null })
+
+        when:
+        cache.put(newPatient('3', 'MRN3'))
+
+        then:
+        cache.containsId('1')
+        !cache.containsId('2')
+        cache.containsId('3')
+        cache.status.evictions == 1
+    }
+
+    def 'concurrent requests for the same patient share a single load'() {
+        given:
+        PatientCache cache = new PatientCache(10, 0, MRN)
+        AtomicInteger loads = new AtomicInteger()
+        CountDownLatch loading = new CountDownLatch(1)
+        CountDownLatch release = new CountDownLatch(1)
+        def loader = {
+            loads.incrementAndGet()
+            loading.countDown()
+            release.await()
+            newPatient('123', 'MRN123')
+        }
+        List<Patient> results = [].asSynchronized()
+
+        when:
+        Thread first = Thread.start { results << cache.getById('123', loader) }
+        loading.await()
+        List<Thread> others = (1..4).collect { Thread.start { results << cache.getById('123', loader) } }
+        Thread.sleep(100)
+        release.countDown()
+        ([first] + others)*.join(5000)
+
+        then:
+        loads.get() == 1
+        results.size() == 5
+        results.every { it.idElement.idPart == '123' }
+        results.toSet().size() == 5
+    }
+
+    def 'a failed load is rethrown and not cached'() {
+        given:
+        PatientCache cache = new PatientCache(10, 0, MRN)
+
+        when:
+        cache.getById('123', { throw new IllegalStateException('unavailable') })
+
+        then:
+        thrown(IllegalStateException)
+        !cache.containsId('123')
+        cache.getById('123', { newPatient('123', 'MRN123') }) != null
+    }
+
+    def 'cached patients are isolated from changes to stored and returned copies'() {
+        given:
+        PatientCache cache = new PatientCache(10, 0, MRN)
+        Patient original = newPatient('123', 'MRN123')
+        cache.put(original)
+
+        when:
+        original.nameFirstRep.family = 'Changed'
+        Patient returned = cache.getById('123', { null })
+        returned.nameFirstRep.family = 'Also changed'
+
+        then:
+        cache.getById('123', { null }).nameFirstRep.family == 'Family'
+        !returned.is(cache.getById('123', { null }))
+    }
+
+    def 'nothing is cached when the size is zero'() {
+        given:
+        PatientCache cache = new PatientCache(0, 0, MRN)
+        int loads = 0
+
+        when:
+        2.times { cache.getById('123', { loads++; newPatient('123', 'MRN123') }) }
+
+        then:
+        loads == 2
+        !cache.containsId('123')
+    }
+
+}
@@ -0,0 +1,140 @@
+package edu.utah.kmm.emerse.solr
+
+import edu.utah.kmm.emerse.database.DatabaseService
+import edu.utah.kmm.emerse.fhir.IdentifierType
+import edu.utah.kmm.emerse.solr.IndexRequestDTO.IndexPriority
+import spock.lang.Specification
+
+import java.util.function.UnaryOperator
+
+class ChunkedIndexRequestSpec extends Specification {
+
+    private static final List<String> IDENTIFIERS = (0..<10).collect { "ID${it}".toString() }
+
+    private CheckpointScheduler scheduler = new CheckpointScheduler(Mock(DatabaseService), 0, 4)
+
+    def cleanup() {
+        scheduler.close()
+    }
+
+    private static IndexRequestDTO newRequest(int processed) {
+        IndexRequestDTO.IIdentifierSource source = { int from -> IDENTIFIERS.drop(from).iterator() }
+        IndexRequestDTO request = new IndexRequestDTO('request', 'server', IdentifierType.MRN, IDENTIFIERS.size(),
+                IndexPriority.BULK, source)
+        request.setProcessed(processed)
+        request.start()
+    }
+
+    private ChunkedIndexRequest newChunked(
+            IndexRequestDTO request,
+            int chunkSize,
+            UnaryOperator<Iterator<String>> wrapper = UnaryOperator.identity()) {
+        new ChunkedIndexRequest(request, new IndexResult(), chunkSize, scheduler.track(), wrapper)
+    }
+
+    def 'chunks are claimed in order until none remain'() {
+        given:
+        ChunkedIndexRequest chunked = newChunked(newRequest(0), 3)
+
+        when:
+        List<List<String>> claimed = []
+        ChunkedIndexRequest.Chunk chunk
+
+        while ((chunk = chunked.claim()) != null) {
+            claimed << chunk.identifiers
+        }
+
+        then:
+        claimed == IDENTIFIERS.collate(3)
+        !chunked.hasUnclaimed()
+    }
+
+    def 'processed count advances only to the low watermark'() {
+        given:
+        IndexRequestDTO request = newRequest(0)
+        ChunkedIndexRequest chunked = newChunked(request, 3)
+        ChunkedIndexRequest.Chunk first = chunked.claim()
+        ChunkedIndexRequest.Chunk second = chunked.claim()
+        ChunkedIndexRequest.Chunk third = chunked.claim()
+
+        when:
+        chunked.processed(second)
+
+        then:
+        request.processed == 0
+
+        when:
+        chunked.processed(first)
+
+        then:
+        request.processed == 6
+
+        when:
+        ChunkedIndexRequest.Chunk last = chunked.claim()
+        chunked.processed(last)
+
+        then:
+        request.processed == 6
+
+        when:
+        chunked.processed(third)
+
+        then:
+        request.processed == 10
+    }
+
+    def 'processed count includes identifiers processed before the request was split'() {
+        given:
+        IndexRequestDTO request = newRequest(4)
+        ChunkedIndexRequest chunked = newChunked(request, 3)
+
+        when:
+        ChunkedIndexRequest.Chunk chunk = chunked.claim()
+        chunked.processed(chunk)
+
+        then:
+        chunk.identifiers == ['ID4', 'ID5', 'ID6']
+        request.processed == 7
+    }
+
+    def 'a checkpoint is due once enough identifiers have been processed'() {
+        given:
+        ChunkedIndexRequest chunked = newChunked(newRequest(0), 3)
+
+        expect:
+        !chunked.processed(chunked.claim())
+        chunked.processed(chunked.claim())
+        !chunked.processed(chunked.claim())
+    }
+
+    def 'identifiers are read through the wrapper as chunks are claimed'() {
+        given:
+        List<String> read = []
+        UnaryOperator<Iterator<String>> wrapper = { Iterator<String> identifiers ->
+            [hasNext: { identifiers.hasNext() }, next: { String id = identifiers.next(); read << id; id }] as Iterator
+        }
+        ChunkedIndexRequest chunked = newChunked(newRequest(0), 1, wrapper)
+
+        when:
+        chunked.claim()
+        chunked.claim()
+
+        then:
+        read == ['ID0', 'ID1']
+    }
+
+    def 'no chunks are claimed once the request has stopped running'() {
+        given:
+        IndexRequestDTO request = newRequest(0)
+        ChunkedIndexRequest chunked = newChunked(request, 3)
+        chunked.claim()
+
+        when:
+        request.error('failed')
+
+        then:
+        !chunked.hasUnclaimed()
+        chunked.claim() == null
+    }
+
+}
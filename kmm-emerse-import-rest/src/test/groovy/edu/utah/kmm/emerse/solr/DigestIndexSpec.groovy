@@ -0,0 +1,143 @@
+package edu.utah.kmm.emerse.solr
+
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class DigestIndexSpec extends Specification {
+
+    private File file
+
+    def setup() {
+        file = new File(Files.createTempDirectory('digest').toFile(), 'digest.idx')
+    }
+
+    def cleanup() {
+        file.parentFile.deleteDir()
+    }
+
+    private static String digest(int i) {
+        String.format('%016x', i) + 'ffffffffffffffff'
+    }
+
+    def 'recorded digests are matched'() {
+        given:
+        DigestIndex index = new DigestIndex(file, 100)
+
+        when:
+        (1..50).each { index.put("doc${it}", digest(it)) }
+        index.put('doc1', digest(99))
+
+        then:
+        index.size() == 50
+        index.matches('doc1', digest(99))
+        !index.matches('doc1', digest(1))
+        (2..50).every { index.matches("doc${it}", digest(it)) }
+        !index.matches('doc51', digest(51))
+
+        cleanup:
+        index.close()
+    }
+
+    def 'file holds a header followed by a power of 2 slots sized for the capacity'() {
+        when:
+        new DigestIndex(file, 100).close()
+        DataInputStream input = new DataInputStream(new FileInputStream(file))
+        long magic = input.readLong()
+        long slots = input.readLong()
+        long size = input.readLong()
+        input.close()
+
+        then:
+        magic == 0x454D45525345444CL
+        slots == 256
+        size == 0
+        file.length() == 64 + slots * 16
+    }
+
+    def 'entries survive reopening'() {
+        given:
+        DigestIndex index = new DigestIndex(file, 100)
+        (1..20).each { index.put("doc${it}", digest(it)) }
+        index.close()
+
+        when:
+        index = new DigestIndex(file, 100)
+
+        then:
+        index.size() == 20
+        (1..20).every { index.matches("doc${it}", digest(it)) }
+
+        cleanup:
+        index.close()
+    }
+
+    def 'reopening with a larger capacity recreates the index and a smaller one keeps it'() {
+        given:
+        DigestIndex index = new DigestIndex(file, 100)
+        index.put('doc1', digest(1))
+        index.close()
+
+        when:
+        index = new DigestIndex(file, 50)
+
+        then:
+        index.limit() >= 100
+        index.matches('doc1', digest(1))
+
+        when:
+        index.close()
+        index = new DigestIndex(file, 1000)
+
+        then:
+        index.limit() >= 1000
+        index.size() == 0
+        !index.matches('doc1', digest(1))
+        file.length() == 64 + 2048 * 16
+
+        cleanup:
+        index.close()
+    }
+
+    def 'a full index rejects new entries but accepts updates'() {
+        given:
+        DigestIndex index = new DigestIndex(file, 10)
+        long limit = index.limit()
+        (1..limit).each { index.put("doc${it}", digest(it as int)) }
+
+        when:
+        index.put('doc1', digest(0))
+
+        then:
+        notThrown(Exception)
+        index.matches('doc1', digest(0))
+
+        when:
+        index.put('new', digest(0))
+
+        then:
+        thrown(IllegalStateException)
+        index.size() == limit
+        !index.matches('new', digest(0))
+
+        cleanup:
+        index.close()
+    }
+
+    def 'clear removes all entries'() {
+        given:
+        DigestIndex index = new DigestIndex(file, 100)
+        (1..10).each { index.put("doc${it}", digest(it)) }
+
+        when:
+        index.clear()
+
+        then:
+        index.size() == 0
+        !index.matches('doc1', digest(1))
+
+        cleanup:
+        index.close()
+    }
+
+}
@@ -0,0 +1,144 @@
+package edu.utah.kmm.emerse.throttle
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class AdaptiveLimiterSpec extends Specification {
+
+    def 'limit is bounded by the minimum and maximum'() {
+        expect:
+        new AdaptiveLimiter('test', 0, 2, 10, 2.0, 0.5).limit == 2
+        new AdaptiveLimiter('test', 50, 2, 10, 2.0, 0.5).limit == 10
+    }
+
+    def 'limit grows while saturated calls succeed with steady latency'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 2, 1, 100, 10.0, 0.5)
+
+        when:
+        50.times {
+            List<Thread> threads = (1..limiter.limit).collect {
+                Thread.start { limiter.call { Thread.sleep(1) } }
+            }
+            threads*.join()
+        }
+
+        then:
+        limiter.limit > 2
+        limiter.status.drops == 0
+    }
+
+    def 'limit does not grow while calls leave it unused'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 8, 1, 100, 10.0, 0.5)
+
+        when:
+        20.times { limiter.call { Thread.sleep(1) } }
+
+        then:
+        limiter.limit == 8
+    }
+
+    def 'limit backs off when a call fails due to overload'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 10, 1, 100, 2.0, 0.5)
+
+        when:
+        limiter.call({ throw new IOException('timeout') }, { true })
+
+        then:
+        RuntimeException e = thrown()
+        e.cause instanceof IOException
+        limiter.limit == 5
+        limiter.status.drops == 1
+        limiter.inFlight == 0
+    }
+
+    def 'limit is unaffected by failures that do not indicate overload'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 10, 1, 100, 2.0, 0.5)
+
+        when:
+        limiter.call({ throw new IllegalArgumentException('bad request') }, { false })
+
+        then:
+        thrown(IllegalArgumentException)
+        limiter.limit == 10
+        limiter.status.drops == 0
+    }
+
+    def 'limit never falls below the minimum'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 10, 3, 100, 2.0, 0.5)
+
+        when:
+        10.times {
+            try {
+                limiter.call { throw new IOException('timeout') }
+            } catch (RuntimeException ignored) {
+            }
+        }
+
+        then:
+        limiter.limit == 3
+    }
+
+    def 'callers wait while the limit is reached'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 1, 1, 1, 2.0, 0.5)
+        CountDownLatch started = new CountDownLatch(1)
+        CountDownLatch finish = new CountDownLatch(1)
+        Thread first = Thread.start { limiter.call { started.countDown(); finish.await() } }
+        started.await()
+        boolean called = false
+        Thread second = Thread.start { limiter.call { called = true } }
+
+        when:
+        Thread.sleep(100)
+
+        then:
+        limiter.inFlight == 1
+        !called
+
+        when:
+        finish.countDown()
+        first.join(5000)
+        second.join(5000)
+
+        then:
+        called
+        limiter.inFlight == 0
+    }
+
+    def 'admission is awaited after a slot is obtained and is not timed'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 4, 1, 100, 2.0, 0.5)
+        int inFlight = -1
+
+        when:
+        limiter.call({ 'ok' }, { false }, {
+            inFlight = limiter.inFlight
+            TimeUnit.MILLISECONDS.sleep(200)
+        })
+
+        then:
+        inFlight == 1
+        limiter.status.latency < 100
+    }
+
+    def 'a slot is released if admission fails'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 4, 1, 100, 2.0, 0.5)
+
+        when:
+        limiter.call({ 'ok' }, { false }, { throw new IllegalStateException('interrupted') })
+
+        then:
+        thrown(IllegalStateException)
+        limiter.inFlight == 0
+        limiter.status.calls == 0
+    }
+
+}
@@ -0,0 +1,76 @@
+package edu.utah.kmm.emerse.throttle
+
+import spock.lang.Specification
+
+class ElasticPermitsSpec extends Specification {
+
+    def 'permits follow the limiter up to the maximum'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 4, 1, 100, 2.0, 0.5)
+
+        expect:
+        new ElasticPermits('workers', limiter, 10).permits == 4
+        new ElasticPermits('workers', limiter, 2).permits == 2
+    }
+
+    def 'permits are not granted beyond the limit'() {
+        given:
+        ElasticPermits permits = new ElasticPermits('workers', new AdaptiveLimiter('test', 2, 1, 100, 2.0, 0.5), 10)
+
+        when:
+        boolean first = permits.tryAcquire()
+        boolean second = permits.tryAcquire()
+        boolean third = permits.tryAcquire()
+        permits.release()
+
+        then:
+        first
+        second
+        !third
+        permits.tryAcquire()
+        permits.status.inUse == 2
+    }
+
+    def 'a waiting worker proceeds once a permit is released'() {
+        given:
+        ElasticPermits permits = new ElasticPermits('workers', new AdaptiveLimiter('test', 1, 1, 100, 2.0, 0.5), 10)
+        permits.acquire()
+        boolean acquired = false
+        Thread waiter = Thread.start {
+            permits.acquire()
+            acquired = true
+        }
+
+        when:
+        Thread.sleep(200)
+
+        then:
+        !acquired
+
+        when:
+        permits.release()
+        waiter.join(5000)
+
+        then:
+        acquired
+    }
+
+    def 'permits grow as the limit grows'() {
+        given:
+        AdaptiveLimiter limiter = new AdaptiveLimiter('test', 2, 1, 100, 10.0, 0.5)
+        ElasticPermits permits = new ElasticPermits('workers', limiter, 100)
+
+        when:
+        // Saturated calls with steady latency raise the limit by about one per limit's worth of calls.
+        100.times {
+            List<Thread> threads = (1..permits.permits).collect {
+                Thread.start { limiter.call { Thread.sleep(1) } }
+            }
+            threads*.join()
+        }
+
+        then:
+        permits.permits > 2
+    }
+
+}
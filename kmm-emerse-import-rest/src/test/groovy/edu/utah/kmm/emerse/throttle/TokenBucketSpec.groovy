@@ -0,0 +1,92 @@
+package edu.utah.kmm.emerse.throttle
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class TokenBucketSpec extends Specification {
+
+    private static long elapsed(Closure closure) {
+        long start = System.nanoTime()
+        closure.call()
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+    }
+
+    def 'an unlimited bucket never waits'() {
+        given:
+        TokenBucket bucket = new TokenBucket(EndpointClass.FHIR_READ, 0, 1)
+
+        expect:
+        !bucket.limited
+        elapsed { 1000.times { bucket.acquire() } } < 100
+        bucket.status.calls == 1000
+    }
+
+    def 'calls are spaced at the configured rate'() {
+        given:
+        TokenBucket bucket = new TokenBucket(EndpointClass.FHIR_READ, 50, 1)
+
+        when:
+        long millis = elapsed { 6.times { bucket.acquire() } }
+
+        then:
+        millis >= 90
+    }
+
+    def 'a burst of calls is permitted after a period of inactivity'() {
+        given:
+        TokenBucket bucket = new TokenBucket(EndpointClass.FHIR_SEARCH, 10, 5)
+
+        when:
+        long burst = elapsed { 5.times { bucket.acquire() } }
+        long next = elapsed { bucket.acquire() }
+
+        then:
+        burst < 50
+        next >= 80
+    }
+
+    def 'a pause defers all calls, which then resume at the configured rate'() {
+        given:
+        TokenBucket bucket = new TokenBucket(EndpointClass.FHIR_BINARY, 20, 5)
+
+        when:
+        bucket.pause(100)
+        long millis = elapsed { 3.times { bucket.acquire() } }
+
+        then:
+        millis >= 190
+        bucket.status.pauses == 1
+    }
+
+    def 'a pause also applies to unlimited buckets'() {
+        given:
+        TokenBucket bucket = new TokenBucket(EndpointClass.EPIC, 0, 1)
+
+        when:
+        bucket.pause(100)
+        long paused = elapsed { bucket.acquire() }
+        long resumed = elapsed { 100.times { bucket.acquire() } }
+
+        then:
+        paused >= 90
+        resumed < 50
+    }
+
+    def 'callers waiting when a pause begins wait for the pause to elapse'() {
+        given:
+        TokenBucket bucket = new TokenBucket(EndpointClass.FHIR_READ, 10, 1)
+        bucket.acquire()
+        long millis = 0
+        Thread waiter = Thread.start { millis = elapsed { bucket.acquire() } }
+
+        when:
+        Thread.sleep(20)
+        bucket.pause(300)
+        waiter.join(5000)
+
+        then:
+        millis >= 250
+    }
+
+}